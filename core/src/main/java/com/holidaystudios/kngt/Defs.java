@@ -5,7 +5,7 @@ package com.holidaystudios.kngt;
  */
 public class Defs {
 
-    public static final Integer TILE_SIZE = 64;
-    public static final Integer TILES_PER_DISTANCE = 15;
+    public static final int TILE_SIZE = 64;
+    public static final int TILES_PER_DISTANCE = 15;
 
 }
@@ -45,5 +45,6 @@ public class KngtzMain extends com.badlogic.gdx.Game {
 
     @Override
     public void dispose() {
+        gameClient.logOut();
     }
 }
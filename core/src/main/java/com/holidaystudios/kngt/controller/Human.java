@@ -6,11 +6,20 @@ import com.holidaystudios.kngt.model.GameModel;
 import com.holidaystudios.kngt.model.KnightModel;
 import com.holidaystudios.kngt.model.RoomModel;
 import com.holidaystudios.kngt.networking.GameClient;
+import com.holidaystudios.kngt.networking.GameServer;
+import com.holidaystudios.kngt.networking.InterestManager;
+import com.holidaystudios.kngt.networking.KnightDeltaEncoder;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by tedbjorling on 2014-02-26.
@@ -20,11 +29,25 @@ public class Human {
     private GameModel model;
     private KnightModel knight;
     private InetAddress clientAddress;
+    private KnightDeltaEncoder knightEncoder = new KnightDeltaEncoder();
+    private InterestManager interest;
+    private int capabilities;
+    // shape ids the client should have cached, evicted in the same order as its cache in GameClient
+    private Set<Integer> sentShapes = Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > GameClient.MAXIMUM_CACHED_SHAPES;
+        }
+    });
+    private long lastPublished = -1; // GameModel.getTime() of the last knight publish
+    private List<Integer> missingKnights = new ArrayList<Integer>(); // as listed by the last snapshot ack
 
-    public Human(GameModel _model, KnightModel _knight, InetAddress IPAddress) {
+    public Human(GameModel _model, KnightModel _knight, InetAddress IPAddress, int _capabilities) {
         model = _model;
         knight = _knight;
         clientAddress = IPAddress;
+        capabilities = _capabilities;
+        interest = new InterestManager(model, InterestManager.DEFAULT_INCLUDE_ADJACENT_ROOMS);
     }
 
     public void doMove(ByteBuffer data) {
@@ -44,15 +67,93 @@ public class Human {
         }
     }
 
-    public void publishCurrentState(DatagramSocket serverSocket) throws IOException {
-        byte[][] room = model.getRoomBitmap(Integer.valueOf(knight.getRoomX()), Integer.valueOf(knight.getRoomY()));
-        if(room != null) {
-            RoomModel.publishRoomBitmap(
-                    room, serverSocket,
+    private void publishRoomBitmap(DatagramChannel serverChannel) throws IOException {
+        RoomModel room = model.getRoom(knight.getRoomX(), knight.getRoomY());
+        if(room != null && room.getShapeId() != 0 && (capabilities & GameServer.CAPABILITY_ROOM_SHAPES) != 0) {
+            // only the id once the client has the shape
+            boolean known = !sentShapes.add(Integer.valueOf(room.getShapeId()));
+            room.publishRoomShape(known, serverChannel, clientAddress, GameClient.CLIENT_PORT);
+        } else if(room != null) {
+            room.publishRoomBitmap(
+                    (capabilities & GameServer.CAPABILITY_PACKED_ROOMS) != 0, serverChannel,
                     clientAddress, GameClient.CLIENT_PORT);
         } else {
             Gdx.app.log("kngt", "Current Knight model room is NULL.");
         }
-        knight.publishKnight(serverSocket, clientAddress);
+    }
+
+    private void publishRoom(DatagramChannel serverChannel) throws IOException {
+        if((capabilities & GameServer.CAPABILITY_SEEDED_CAVE) != 0) {
+            model.getRoom(knight.getRoomX(), knight.getRoomY()).publishRoomReference(serverChannel, clientAddress, GameClient.CLIENT_PORT);
+        } else {
+            publishRoomBitmap(serverChannel);
+        }
+    }
+
+    public void publishCurrentState(DatagramChannel serverChannel) throws IOException {
+        if((capabilities & GameServer.CAPABILITY_SEEDED_CAVE) != 0) {
+            model.getCave().publishCaveSeed(serverChannel, clientAddress, GameClient.CLIENT_PORT);
+        }
+        interest.update(knight);
+        publishRoom(serverChannel);
+        knightEncoder.publish(interest.collect(), serverChannel, clientAddress);
+    }
+
+    /**
+     * The client's own copy of a room did not match, send the real bitmap. Only
+     * the room our knight is in is served.
+     */
+    public void requestRoom(ByteBuffer data, DatagramChannel serverChannel) throws IOException {
+        final int roomX = data.getShort() & 0xffff;
+        final int roomY = data.getShort() & 0xffff;
+        if(roomX == knight.getRoomX() && roomY == knight.getRoomY()) {
+            publishRoomBitmap(serverChannel);
+        }
+    }
+
+    /**
+     * The client did not have a shape we thought it had, maybe the packet
+     * carrying it was lost. Only the shape of the room our knight is in is
+     * served.
+     */
+    public void requestShape(ByteBuffer data, DatagramChannel serverChannel) throws IOException {
+        final int shapeId = data.getInt();
+        RoomModel room = model.getRoom(knight.getRoomX(), knight.getRoomY());
+        if(room != null && room.getShapeId() == shapeId) {
+            sentShapes.remove(Integer.valueOf(shapeId));
+            publishRoomBitmap(serverChannel);
+        }
+    }
+
+    /**
+     * Publish what changed since the last call: the room bitmap if our knight
+     * went through a door, and the knights we are interested in. Nothing is
+     * encoded while our rooms sleep and the client has everything.
+     */
+    public void publishState(DatagramChannel serverChannel) throws IOException {
+        if(interest.update(knight)) {
+            publishRoom(serverChannel);
+        } else if(knightEncoder.isSettled() && !interest.isAwakeSince(lastPublished)) {
+            return;
+        }
+        knightEncoder.publish(interest.collect(), serverChannel, clientAddress);
+        lastPublished = model.getTime();
+    }
+
+    /**
+     * The client left, take our knight out of the game.
+     */
+    public void logout() {
+        model.removeKnight(knight);
+    }
+
+    public void acknowledgeSnapshot(ByteBuffer data) {
+        final int sequence = data.getShort() & 0xffff;
+        missingKnights.clear();
+        if(data.hasRemaining()) {
+            for(int k = data.get() & 0xff; k > 0; k--)
+                missingKnights.add(data.getInt());
+        }
+        knightEncoder.acknowledge(sequence, missingKnights);
     }
 }
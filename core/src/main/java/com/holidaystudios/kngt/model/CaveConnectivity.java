@@ -0,0 +1,112 @@
+package com.holidaystudios.kngt.model;
+
+/**
+ * Which rooms of a cave can reach each other through doors, found with a
+ * union-find pass over every edge between two rooms.
+ *
+ * repair() joins the components by opening doors, scanning the cave row by
+ * row and opening the first closed edge between two rooms that are not
+ * connected yet, so the result only depends on the doors it started from.
+ */
+public class CaveConnectivity {
+    private final int roomsX, roomsY;
+    private final int[] parent;
+    private final int[] size;
+    private final int initialComponents;
+    private int components;
+    private int addedDoors = 0;
+
+    CaveConnectivity(final CaveModel cave) {
+        this.roomsX = cave.getRoomsX();
+        this.roomsY = cave.getRoomsY();
+        this.parent = new int[roomsX * roomsY];
+        this.size = new int[roomsX * roomsY];
+        for (int i=0; i<parent.length; i++) {
+            parent[i] = i;
+            size[i] = 1;
+        }
+        components = parent.length;
+
+        for (int cy=0; cy<roomsY; cy++) {
+            for (int cx=0; cx<roomsX; cx++) {
+                final int index = cy * roomsX + cx;
+                if (cave.hasEastDoor(cx, cy)) {
+                    union(index, index + 1);
+                }
+                if (cave.hasSouthDoor(cx, cy)) {
+                    union(index, index + roomsX);
+                }
+            }
+        }
+        initialComponents = components;
+    }
+
+    private int find(int room) {
+        while (parent[room] != room) {
+            // path halving
+            parent[room] = parent[parent[room]];
+            room = parent[room];
+        }
+        return room;
+    }
+
+    private boolean union(final int a, final int b) {
+        int rootA = find(a), rootB = find(b);
+        if (rootA == rootB) {
+            return false;
+        }
+        if (size[rootA] < size[rootB]) {
+            final int swap = rootA;
+            rootA = rootB;
+            rootB = swap;
+        }
+        parent[rootB] = rootA;
+        size[rootA] += size[rootB];
+        components--;
+        return true;
+    }
+
+    /**
+     * Open doors until every room can be reached from every other room.
+     */
+    void repair(final DoorLayout doors) {
+        for (int cy=0; cy<roomsY && components > 1; cy++) {
+            for (int cx=0; cx<roomsX; cx++) {
+                final int index = cy * roomsX + cx;
+                if (cx < roomsX - 1 && union(index, index + 1)) {
+                    doors.addDoor(cx, cy, DoorLayout.EDGE_EAST);
+                    addedDoors++;
+                }
+                if (cy < roomsY - 1 && union(index, index + roomsX)) {
+                    doors.addDoor(cx, cy, DoorLayout.EDGE_SOUTH);
+                    addedDoors++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of components before any repair
+     */
+    public int getInitialComponentCount() {
+        return initialComponents;
+    }
+
+    public int getComponentCount() {
+        return components;
+    }
+
+    public int getLargestComponentSize() {
+        int largest = 0;
+        for (int i=0; i<parent.length; i++) {
+            if (parent[i] == i) {
+                largest = Math.max(largest, size[i]);
+            }
+        }
+        return largest;
+    }
+
+    public int getAddedDoors() {
+        return addedDoors;
+    }
+}
@@ -0,0 +1,187 @@
+package com.holidaystudios.kngt.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A generated cave on disk, written once and memory mapped when opened so
+ * rooms are decoded straight from the mapping the first time they are used.
+ *
+ * Layout, big endian:
+ *   magic "KNGC", format version, generator version, tiles per distance, flags,
+ *   rooms x (int), rooms y (int), seed length (unsigned short), seed (UTF-8),
+ *   door table: per room, row by row, the N, W, S and E door offsets, 0 for no door,
+ *   tiles: per room, row by row, four tiles per byte, first tile in the high bits.
+ */
+final class CaveFile {
+    final static int MAGIC = 0x4b4e4743;
+    final static int FORMAT_VERSION = 1;
+
+    private final static Charset SEED_CHARSET = Charset.forName("UTF-8");
+    private final static RoomModel.DoorPosition[] DOOR_ORDER = {
+        RoomModel.DoorPosition.N, RoomModel.DoorPosition.W, RoomModel.DoorPosition.S, RoomModel.DoorPosition.E
+    };
+
+    final String seed;
+    final int generatorVersion, tilesPerDistance, roomsX, roomsY;
+    final boolean connected;
+
+    private final ByteBuffer map;
+    private final int doorTable, tileTable, roomBytes;
+
+    private CaveFile(final ByteBuffer map, final String seed, final int generatorVersion, final int tilesPerDistance,
+                     final int flags, final int roomsX, final int roomsY, final int doorTable) {
+        this.map = map;
+        this.connected = (flags & CaveModel.CAVE_FLAG_CONNECTED) != 0;
+        this.seed = seed;
+        this.generatorVersion = generatorVersion;
+        this.tilesPerDistance = tilesPerDistance;
+        this.roomsX = roomsX;
+        this.roomsY = roomsY;
+        this.doorTable = doorTable;
+        this.tileTable = doorTable + roomsX * roomsY * DOOR_ORDER.length;
+        this.roomBytes = (tilesPerDistance * tilesPerDistance + 3) / 4;
+    }
+
+    private static int headerLength(final byte[] seed) {
+        return 4 + 4 + 4 + 4 + 2 + seed.length;
+    }
+
+    /**
+     * @return the length in bytes of the file for a cave, files longer than
+     *         Integer.MAX_VALUE can not be written
+     */
+    static long length(final String seed, final int tilesPerDistance, final int roomsX, final int roomsY) {
+        final int roomBytes = (tilesPerDistance * tilesPerDistance + 3) / 4;
+        return headerLength(seed.getBytes(SEED_CHARSET)) + (long)roomsX * roomsY * (DOOR_ORDER.length + roomBytes);
+    }
+
+    static void write(final CaveModel cave, final int tilesPerDistance, final File file) throws IOException {
+        final byte[] seed = cave.getSeed().getBytes(SEED_CHARSET);
+        final int roomBytes = (tilesPerDistance * tilesPerDistance + 3) / 4;
+        final long rooms = (long)cave.getRoomsX() * cave.getRoomsY();
+        final long length = length(cave.getSeed(), tilesPerDistance, cave.getRoomsX(), cave.getRoomsY());
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("cave of " + rooms + " rooms is too large for a cave file");
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            final MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+            map.putInt(MAGIC);
+            map.put((byte)FORMAT_VERSION);
+            map.put((byte)cave.getGeneratorVersion());
+            map.put((byte)tilesPerDistance);
+            map.put((byte)(cave.isConnected() ? CaveModel.CAVE_FLAG_CONNECTED : 0));
+            map.putInt(cave.getRoomsX());
+            map.putInt(cave.getRoomsY());
+            map.putShort((short)seed.length);
+            map.put(seed);
+
+            final int doorTable = map.position();
+            final int tileTable = doorTable + (int)rooms * DOOR_ORDER.length;
+            for (int cy=0; cy<cave.getRoomsY(); cy++) {
+                for (int cx=0; cx<cave.getRoomsX(); cx++) {
+                    final int index = cy * cave.getRoomsX() + cx;
+                    final RoomModel room = cave.getRoom(cx, cy);
+
+                    for (int d=0; d<DOOR_ORDER.length; d++) {
+                        final int offset = room.hasDoor(DOOR_ORDER[d]) ? room.getDoor(DOOR_ORDER[d]) : 0;
+                        map.put(doorTable + index * DOOR_ORDER.length + d, (byte)offset);
+                    }
+
+                    final byte[] tiles = room.getTiles();
+                    int position = tileTable + index * roomBytes;
+                    int packed = 0, count = 0;
+                    for (final byte tile : tiles) {
+                        packed = (packed << 2) | (tile & 0x03);
+                        if (++count == 4) {
+                            map.put(position++, (byte)packed);
+                            packed = 0;
+                            count = 0;
+                        }
+                    }
+                    if (count > 0) {
+                        map.put(position, (byte)(packed << (2 * (4 - count))));
+                    }
+                }
+            }
+            map.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    static CaveFile open(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+            if (map.remaining() < 18 || map.getInt() != MAGIC) {
+                throw new IOException(file + " is not a cave file");
+            }
+            final int formatVersion = map.get() & 0xff;
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException(file + " has cave file version " + formatVersion + ", expected " + FORMAT_VERSION);
+            }
+            final int generatorVersion = map.get() & 0xff;
+            final int tilesPerDistance = map.get() & 0xff;
+            final int flags = map.get() & 0xff;
+            final int roomsX = map.getInt();
+            final int roomsY = map.getInt();
+            final byte[] seed = new byte[map.getShort() & 0xffff];
+            map.get(seed);
+
+            final CaveFile cave = new CaveFile(map, new String(seed, SEED_CHARSET), generatorVersion, tilesPerDistance,
+                    flags, roomsX, roomsY, map.position());
+            if (cave.tileTable + (long)roomsX * roomsY * cave.roomBytes > map.capacity()) {
+                throw new IOException(file + " is truncated");
+            }
+            return cave;
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    boolean hasDoor(final int cx, final int cy, final RoomModel.DoorPosition position) {
+        for (int d=0; d<DOOR_ORDER.length; d++) {
+            if (DOOR_ORDER[d] == position) {
+                return map.get(doorTable + (cy * roomsX + cx) * DOOR_ORDER.length + d) != 0;
+            }
+        }
+        return false;
+    }
+
+    RoomModel readRoom(final int cx, final int cy) {
+        final int index = cy * roomsX + cx;
+
+        final byte[] tiles = new byte[tilesPerDistance * tilesPerDistance];
+        int position = tileTable + index * roomBytes;
+        int packed = 0, count = 0;
+        for (int i=0; i<tiles.length; i++) {
+            if (count == 0) {
+                packed = map.get(position++) & 0xff;
+                count = 4;
+            }
+            count--;
+            tiles[i] = (byte)((packed >> (2 * count)) & 0x03);
+        }
+
+        final RoomModel room = new RoomModel(cx, cy, tilesPerDistance, tilesPerDistance, tiles);
+        for (int d=0; d<DOOR_ORDER.length; d++) {
+            final int offset = map.get(doorTable + index * DOOR_ORDER.length + d) & 0xff;
+            if (offset != 0) {
+                room.setDoor(DOOR_ORDER[d], offset);
+            }
+        }
+        return room;
+    }
+}
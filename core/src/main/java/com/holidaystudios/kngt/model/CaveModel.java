@@ -2,56 +2,257 @@ package com.holidaystudios.kngt.model;
 
 import com.holidaystudios.kngt.Defs;
 import com.holidaystudios.kngt.TileTypes;
-import com.holidaystudios.kngt.tools.RandomUtils;
+import com.holidaystudios.kngt.networking.GamePacketProvider;
+import com.holidaystudios.kngt.networking.GameServer;
+import com.holidaystudios.kngt.tools.FastRandom;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 
 /**
  * Created by tedbjorling on 2014-02-20.
  */
 public class CaveModel {
 
+    // bump whenever generation changes, clients only rebuild caves made by the same generator
+    public final static int GENERATOR_VERSION = 4;
+
+    // flags of SR_PACKET_CAVE_SEED and the cave file header
+    public final static int CAVE_FLAG_CONNECTED = 0x01; // repaired by CaveConnectivity
+
+    // in UTF-8 bytes, SR_PACKET_CAVE_SEED has one byte for the length
+    public final static int MAXIMUM_SEED_LENGTH = 255;
+
+    private final static Charset SEED_CHARSET = Charset.forName("UTF-8");
+
     private String seed;
-    private Integer roomsX;
-    private Integer roomsY;
+    private int roomsX;
+    private int roomsY;
     private RoomModel[][] rooms;
+    private RoomCache roomCache; // instead of rooms in a lazy cave
+    private CaveFile source; // where a lazy cave opened from a file reads its rooms
+    private int generatorVersion = GENERATOR_VERSION;
+    private DoorLayout doors;
+    private boolean connected;
+    private CaveConnectivity connectivity; // as found while generating a connected cave
+    private ShapeRegistry shapes = new ShapeRegistry(); // tiles shared by identical rooms
+    private FastRandom random;
+
+    public CaveModel(final String seed, final int roomsX, final int roomsY) {
+        this(seed, roomsX, roomsY, 1);
+    }
+
+    /**
+     * @param parallelism number of threads painting room interiors, the cave is
+     *                    identical whatever the value
+     */
+    public CaveModel(final String seed, final int roomsX, final int roomsY, final int parallelism) {
+        this(seed, roomsX, roomsY, parallelism, true);
+    }
 
-    public CaveModel(final String seed, final Integer roomsX, final Integer roomsY) {
-        RandomUtils.setSeed(seed);
+    /**
+     * @param connected open doors where needed for every room to be reachable
+     *                  from every other room, before any room is generated
+     */
+    public CaveModel(final String seed, final int roomsX, final int roomsY, final int parallelism, final boolean connected) {
+        this(seed, roomsX, roomsY, parallelism, 0, connected);
+    }
+
+    private CaveModel(final String seed, final int roomsX, final int roomsY, final int parallelism, final long cacheBudget, final boolean connected) {
+        if (!isSeedValid(seed)) {
+            throw new IllegalArgumentException("seed longer than " + MAXIMUM_SEED_LENGTH + " bytes");
+        }
+        this.random = new FastRandom(FastRandom.seedFromString(seed));
+        this.seed = seed;
         this.setRoomsX(roomsX);
         this.setRoomsY(roomsY);
+        this.doors = new DoorLayout(random.getSeed(), roomsX, roomsY, Defs.TILES_PER_DISTANCE);
 
-        //Start mapping out the individual rooms
-        this.createRooms();
+        if (connected) {
+            this.connectivity = new CaveConnectivity(this);
+            this.connectivity.repair(this.doors);
+            this.connected = true;
+        }
+
+        if (cacheBudget > 0) {
+            roomCache = new RoomCache(this, cacheBudget);
+        } else {
+            //Start mapping out the individual rooms
+            this.createRooms(parallelism);
+        }
     }
 
-    public byte[][] getRoomBitmap(final Integer cx, final Integer cy) {
-        return rooms[cy][cx].getBitmap();
+    /**
+     * A cave whose rooms are generated the first time they are asked for, so
+     * creating it costs nothing whatever its size. Not thread safe. Unlike
+     * the constructors this does not connect the cave, as that takes a pass
+     * over all of it.
+     */
+    public static CaveModel createLazy(final String seed, final int roomsX, final int roomsY) {
+        return createLazy(seed, roomsX, roomsY, RoomCache.DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param cacheBudget memory, in bytes, the generated rooms may use before
+     *                    unpinned ones are dropped to be generated again later
+     */
+    public static CaveModel createLazy(final String seed, final int roomsX, final int roomsY, final long cacheBudget) {
+        return createLazy(seed, roomsX, roomsY, cacheBudget, false);
+    }
+
+    public static CaveModel createLazy(final String seed, final int roomsX, final int roomsY, final long cacheBudget, final boolean connected) {
+        return new CaveModel(seed, roomsX, roomsY, 0, cacheBudget, connected);
+    }
+
+    /**
+     * Open a cave written by writeFile(). Nothing but the header is read, rooms
+     * are decoded from the memory mapped file when they are first used.
+     */
+    public static CaveModel open(final File file) throws IOException {
+        return open(file, RoomCache.DEFAULT_BUDGET);
+    }
+
+    public static CaveModel open(final File file, final long cacheBudget) throws IOException {
+        final CaveFile source = CaveFile.open(file);
+        if (source.tilesPerDistance != Defs.TILES_PER_DISTANCE) {
+            throw new IOException(file + " has " + source.tilesPerDistance + " tiles per room side, expected " + Defs.TILES_PER_DISTANCE);
+        }
+        if (!isSeedValid(source.seed)) {
+            throw new IOException(file + " has a seed longer than " + MAXIMUM_SEED_LENGTH + " bytes");
+        }
+
+        final CaveModel cave = new CaveModel(source.seed, source.roomsX, source.roomsY, 0, cacheBudget, false);
+        cave.source = source;
+        cave.connected = source.connected;
+        cave.generatorVersion = source.generatorVersion;
+        return cave;
+    }
+
+    /**
+     * Write the cave to a file for open() to map later.
+     */
+    public void writeFile(final File file) throws IOException {
+        CaveFile.write(this, Defs.TILES_PER_DISTANCE, file);
+    }
+
+    /**
+     * @return whether the seed is short enough to be sent to clients
+     */
+    public static boolean isSeedValid(final String seed) {
+        return seed.getBytes(SEED_CHARSET).length <= MAXIMUM_SEED_LENGTH;
+    }
+
+    /**
+     * @return whether writeFile() can write a cave of the given seed and size
+     */
+    public static boolean fitsInFile(final String seed, final int roomsX, final int roomsY) {
+        return CaveFile.length(seed, Defs.TILES_PER_DISTANCE, roomsX, roomsY) <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the version of the generator that made this cave, older than
+     *         GENERATOR_VERSION for caves opened from old files
+     */
+    public int getGeneratorVersion() {
+        return generatorVersion;
+    }
+
+    boolean hasEastDoor(final int cx, final int cy) {
+        if (source != null) {
+            return source.hasDoor(cx, cy, RoomModel.DoorPosition.E);
+        }
+        return doors.hasDoor(cx, cy, DoorLayout.EDGE_EAST);
+    }
+
+    boolean hasSouthDoor(final int cx, final int cy) {
+        if (source != null) {
+            return source.hasDoor(cx, cy, RoomModel.DoorPosition.S);
+        }
+        return doors.hasDoor(cx, cy, DoorLayout.EDGE_SOUTH);
+    }
+
+    /**
+     * @return whether the cave was made connected, see CaveConnectivity
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the components found and the doors opened while connecting the
+     *         cave, or null if it was not connected when created
+     */
+    public CaveConnectivity getConnectivity() {
+        return connectivity;
+    }
+
+    /**
+     * Find the components of the cave as it is now, from its doors alone.
+     */
+    public CaveConnectivity analyseConnectivity() {
+        return new CaveConnectivity(this);
+    }
+
+    public ShapeRegistry getShapes() {
+        return shapes;
+    }
+
+    public boolean isLazy() {
+        return roomCache != null;
+    }
+
+    /**
+     * @return the cache of generated rooms, or null if the cave is not lazy
+     */
+    public RoomCache getRoomCache() {
+        return roomCache;
+    }
+
+    public RoomModel getRoom(final int cx, final int cy) {
+        if (roomCache == null) {
+            return rooms[cy][cx];
+        }
+        return roomCache.get(cx, cy);
     }
 
+    /**
+     * Keep a room of a lazy cave in memory, while knights are in it.
+     */
+    public void pinRoom(final int cx, final int cy) {
+        if (roomCache != null) {
+            roomCache.pin(cx, cy);
+        }
+    }
+
+    public void unpinRoom(final int cx, final int cy) {
+        if (roomCache != null) {
+            roomCache.unpin(cx, cy);
+        }
+    }
+
+    /**
+     * The whole cave in one array. Use exportAscii() or exportBinary() for
+     * anything big, they do not hold more than a row of rooms at a time.
+     */
     public byte[][] getBitmap() {
 
-        final byte[][] caveBitmap = new byte[Defs.TILES_PER_DISTANCE*rooms.length][Defs.TILES_PER_DISTANCE*rooms.length];
+        final byte[][] caveBitmap = new byte[Defs.TILES_PER_DISTANCE*this.getRoomsY()][Defs.TILES_PER_DISTANCE*this.getRoomsX()];
 
         //Fill the main bitmap
-        for (int cy=0; cy<rooms.length; cy++) {
-            for (int cx=0; cx<rooms[cy].length; cx++) {
-                final byte[][] bitmap = rooms[cy][cx].getBitmap();
-                final Integer offsetX = cx*Defs.TILES_PER_DISTANCE;
-                final Integer offsetY = cy*Defs.TILES_PER_DISTANCE;
-
-                for (int y=0; y<bitmap.length; y++) {
-                    for (int x=0; x<bitmap[y].length; x++) {
-
-                        caveBitmap[y+offsetY][x+offsetX] = bitmap[y][x];
-
-                        /* ENABLE FOR COORDINATES IN DEBUG OUTPUT
-                        if (x == 0 && y == 0) {
-                            caveBitmap[y+offsetY][x+offsetX] = 1000+cx;
-                        } else if (x == 1 && y == 0) {
-                            caveBitmap[y+offsetY][x+offsetX] = 2000;
-                        } else if (x == 2 && y == 0) {
-                            caveBitmap[y+offsetY][x+offsetX] = 1000+cy;
-                        }
-                        */
+        for (int cy=0; cy<this.getRoomsY(); cy++) {
+            for (int cx=0; cx<this.getRoomsX(); cx++) {
+                final RoomModel room = getRoom(cx, cy);
+                final int offsetX = cx*Defs.TILES_PER_DISTANCE;
+                final int offsetY = cy*Defs.TILES_PER_DISTANCE;
+
+                for (int y=0; y<room.getHeight(); y++) {
+                    for (int x=0; x<room.getWidth(); x++) {
+                        caveBitmap[y+offsetY][x+offsetX] = room.getTile(x, y);
                     }
                 }
             }
@@ -60,152 +261,202 @@ public class CaveModel {
         return caveBitmap;
     }
 
-    @Override
-    public String toString() {
+    private static char tileChar(final byte tile) {
+        if (tile == TileTypes.TILE_FLOOR) {
+            return '.';
+        } else if (tile == TileTypes.TILE_WALL) {
+            return '#';
+        } else if (tile == TileTypes.TILE_DOOR) {
+            return 'O';
+        }
+        return ' ';
+    }
 
-        final StringBuilder sb = new StringBuilder();
+    private RoomModel[] getRoomRow(final int cy, final RoomModel[] band) {
+        for (int cx=0; cx<this.getRoomsX(); cx++) {
+            band[cx] = getRoom(cx, cy);
+        }
+        return band;
+    }
 
-        final byte[][] caveBitmap = this.getBitmap();
-
-        for (int y=0; y<caveBitmap.length; y++) {
-            for (int x=0; x<caveBitmap[y].length; x++) {
-                final byte p = caveBitmap[y][x];
-
-                if (p == 2000) {
-                    sb.append(',');
-                } else if (p >= 1000) {
-                    sb.append(Integer.toString(p - 1000));
-                } else {
-
-                    if (p == TileTypes.TILE_FLOOR) {
-                        sb.append('.');
-                    } else if (p == TileTypes.TILE_WALL) {
-                        sb.append('#');
-                    } else if (p == TileTypes.TILE_DOOR) {
-                        sb.append('O');
-                    } else {
-                        sb.append(' ');
+    /**
+     * Write the cave as text, one line per row of tiles, walking it one row of
+     * rooms at a time.
+     */
+    public void exportAscii(final Appendable out) throws IOException {
+        final int tiles = Defs.TILES_PER_DISTANCE;
+        final RoomModel[] band = new RoomModel[this.getRoomsX()];
+        final StringBuilder line = new StringBuilder(tiles * this.getRoomsX());
+
+        for (int cy=0; cy<this.getRoomsY(); cy++) {
+            getRoomRow(cy, band);
+            for (int y=0; y<tiles; y++) {
+                line.setLength(0);
+                for (final RoomModel room : band) {
+                    for (int x=0; x<tiles; x++) {
+                        line.append(tileChar(room.getTile(x, y)));
                     }
                 }
+                out.append(line).append(System.lineSeparator());
             }
-            sb.append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Write the cave as width and height in tiles (two big endian ints)
+     * followed by one byte per tile, row by row, walking it one row of rooms
+     * at a time.
+     */
+    public void exportBinary(final WritableByteChannel out) throws IOException {
+        final int tiles = Defs.TILES_PER_DISTANCE;
+        final RoomModel[] band = new RoomModel[this.getRoomsX()];
+        final ByteBuffer line = ByteBuffer.allocate(Math.max(8, tiles * this.getRoomsX()));
+
+        line.putInt(tiles * this.getRoomsX());
+        line.putInt(tiles * this.getRoomsY());
+        writeFully(line, out);
+
+        for (int cy=0; cy<this.getRoomsY(); cy++) {
+            getRoomRow(cy, band);
+            for (int y=0; y<tiles; y++) {
+                line.clear();
+                for (final RoomModel room : band) {
+                    line.put(room.getTiles(), room.index(0, y), tiles);
+                }
+                writeFully(line, out);
+            }
+        }
+    }
+
+    private static void writeFully(final ByteBuffer bb, final WritableByteChannel out) throws IOException {
+        bb.flip();
+        while (bb.hasRemaining()) {
+            out.write(bb);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        try {
+            this.exportAscii(sb);
+        } catch (IOException e) {
+            // a StringBuilder does not throw
         }
         return sb.toString();
     }
 
-    private Integer createDoorPositionHelper() {
-        return 2 + (int) Math.round(RandomUtils.getRandom() * (Defs.TILES_PER_DISTANCE-4));
+    RoomModel createRoom(final int cx, final int cy) {
+        final RoomModel room;
+        if (source != null) {
+            room = source.readRoom(cx, cy);
+        } else {
+            //Every room gets its own generator, derived from the cave seed and its position
+            room = new RoomModel(cx, cy, Defs.TILES_PER_DISTANCE, random.fork((long)cy * this.getRoomsX() + cx));
+            doors.applyDoors(room, cx, cy);
+            room.createInterior();
+        }
+        room.intern(shapes);
+        return room;
     }
 
-    private void createRooms() {
+    /**
+     * Generates the rooms from index from up to to, in row-major order.
+     * Every room draws from its own generator and its doors only depend on the
+     * seed, so the order in which rooms are generated does not matter.
+     */
+    void createRooms(final int from, final int to) {
+        final int roomsX = this.getRoomsX();
+        for (int i=from; i<to; i++) {
+            rooms[i / roomsX][i % roomsX] = this.createRoom(i % roomsX, i / roomsX);
+        }
+    }
 
-        //Create the rooms
+    private void createRooms(final int parallelism) {
         rooms = new RoomModel[this.getRoomsY()][];
         for (int cy=0; cy< this.getRoomsY(); cy++) {
             rooms[cy] = new RoomModel[this.getRoomsX()];
-            for (int cx=0; cx< this.getRoomsX(); cx++) {
-                rooms[cy][cx] = new RoomModel(cx, cy, Defs.TILES_PER_DISTANCE);
-            }
         }
 
-        //Create doors
-        for (int cy=0; cy< this.getRoomsY(); cy++) {
-            for (int cx=0; cx< this.getRoomsX(); cx++) {
-                final RoomModel thisRoom = rooms[cy][cx];
-
-                //Make sure that each cavity has at least one door
-                while (!thisRoom.hasAnyDoor()) {
-
-                    //South door
-                    if (cy<(this.getRoomsY() -1)) {
-                        final RoomModel roomBelow = rooms[cy+1][cx];
-
-                        //Does the room below has a door pointing upwards?
-                        if (roomBelow.hasDoor(RoomModel.DoorPosition.N)) {
-                            thisRoom.setDoor(RoomModel.DoorPosition.S, roomBelow.getDoor(RoomModel.DoorPosition.N));
-                        } else {
-                            if (RandomUtils.getRandom() > 0.5) {
-                                final Integer doorOffset = createDoorPositionHelper();
-                                thisRoom.setDoor(RoomModel.DoorPosition.S, doorOffset);
-                                roomBelow.setDoor(RoomModel.DoorPosition.N, doorOffset);
-                            }
-                        }
-                    }
-
-                    //North door
-                    if (cy>0) {
-                        final RoomModel roomAbove = rooms[cy-1][cx];
-
-                        //Does the room above has a door pointing downwards?
-                        if (roomAbove.hasDoor(RoomModel.DoorPosition.S)) {
-                            thisRoom.setDoor(RoomModel.DoorPosition.N, roomAbove.getDoor(RoomModel.DoorPosition.S));
-                        } else {
-                            if (RandomUtils.getRandom() > 0.5) {
-                                final Integer doorOffset = createDoorPositionHelper();
-                                thisRoom.setDoor(RoomModel.DoorPosition.N, doorOffset);
-                                roomAbove.setDoor(RoomModel.DoorPosition.S, doorOffset);
-                            }
-                        }
-                    }
-
-                    //West door
-                    if (cx>0) {
-                        final RoomModel roomLeft = rooms[cy][cx-1];
-
-                        //Does the room to the left has a door pointing right?
-                        if (roomLeft.hasDoor(RoomModel.DoorPosition.E)) {
-                            thisRoom.setDoor(RoomModel.DoorPosition.W, roomLeft.getDoor(RoomModel.DoorPosition.E));
-                        } else {
-                            if (RandomUtils.getRandom() > 0.5) {
-                                final Integer doorOffset = createDoorPositionHelper();
-                                thisRoom.setDoor(RoomModel.DoorPosition.W, doorOffset);
-                                roomLeft.setDoor(RoomModel.DoorPosition.E, doorOffset);
-                            }
-                        }
-                    }
-
-                    //East door
-                    if (cx<(this.getRoomsX() -1)) {
-                        final RoomModel roomRight = rooms[cy][cx+1];
-
-                        //Does the room to the right has a door pointing left?
-                        if (roomRight.hasDoor(RoomModel.DoorPosition.W)) {
-                            thisRoom.setDoor(RoomModel.DoorPosition.E, roomRight.getDoor(RoomModel.DoorPosition.W));
-                        } else {
-                            if (RandomUtils.getRandom() > 0.5) {
-                                final Integer doorOffset = createDoorPositionHelper();
-                                thisRoom.setDoor(RoomModel.DoorPosition.E, doorOffset);
-                                roomRight.setDoor(RoomModel.DoorPosition.W, doorOffset);
-                            }
-                        }
-                    }
-
-                }
-            }
+        if (parallelism > 1) {
+            //Only touched here, the fork/join classes are missing on older Android
+            ParallelRoomTask.createRooms(this, parallelism);
+        } else {
+            this.createRooms(0, this.getRoomsX() * this.getRoomsY());
         }
+    }
 
-
-        //Now paint the interior of the rooms
+    /**
+     * Hash over the content hashes of all rooms, for checking that two caves
+     * generated from the same seed came out the same.
+     */
+    public long getContentHash() {
+        long hash = FastRandom.seedFromString(this.seed);
         for (int cy=0; cy< this.getRoomsY(); cy++) {
             for (int cx=0; cx< this.getRoomsX(); cx++) {
-                rooms[cy][cx].createInterior();
+                hash = FastRandom.mix(hash ^ getRoom(cx, cy).getContentHash());
             }
         }
+        return hash;
+    }
+
+    /**
+     * Send what a client needs to generate this cave by itself.
+     */
+    public void publishCaveSeed(DatagramChannel serverChannel, InetAddress IPAddress, int port) throws IOException {
+        GamePacketProvider packetProvider = GameServer.getInstance().getPacketProvider();
+        ByteBuffer bb = packetProvider.getSendBuffer();
+
+        final byte[] seedBytes = seed.getBytes(SEED_CHARSET);
+        bb.put(GameServer.SR_PACKET_CAVE_SEED);
+        bb.put((byte)generatorVersion);
+        bb.put((byte)(connected ? CAVE_FLAG_CONNECTED : 0));
+        bb.put((byte)Defs.TILES_PER_DISTANCE);
+        bb.putShort((short)roomsX);
+        bb.putShort((short)roomsY);
+        bb.put((byte)seedBytes.length);
+        bb.put(seedBytes);
+
+        packetProvider.send(serverChannel, IPAddress, port);
+    }
+
+    /**
+     * Rebuild a cave from SR_PACKET_CAVE_SEED.
+     *
+     * @return null if the cave was made by a different generator or for a different room size
+     */
+    public static CaveModel consumePublishedCaveSeed(ByteBuffer bb) {
+        final int version = bb.get() & 0xff;
+        final int flags = bb.get() & 0xff;
+        final int tilesPerDistance = bb.get() & 0xff;
+        final int roomsX = bb.getShort() & 0xffff;
+        final int roomsY = bb.getShort() & 0xffff;
+        final byte[] seedBytes = new byte[bb.get() & 0xff];
+        bb.get(seedBytes);
+
+        if(version != GENERATOR_VERSION || tilesPerDistance != Defs.TILES_PER_DISTANCE)
+            return null;
+        return createLazy(new String(seedBytes, SEED_CHARSET), roomsX, roomsY, RoomCache.DEFAULT_BUDGET,
+                (flags & CAVE_FLAG_CONNECTED) != 0);
+    }
+
+    public String getSeed() {
+        return seed;
     }
 
-    public Integer getRoomsX() {
+    public int getRoomsX() {
         return roomsX;
     }
 
-    public void setRoomsX(Integer roomsX) {
+    public void setRoomsX(int roomsX) {
         this.roomsX = roomsX;
     }
 
-    public Integer getRoomsY() {
+    public int getRoomsY() {
         return roomsY;
     }
 
-    public void setRoomsY(Integer roomsY) {
+    public void setRoomsY(int roomsY) {
         this.roomsY = roomsY;
     }
 }
@@ -0,0 +1,125 @@
+package com.holidaystudios.kngt.model;
+
+import com.holidaystudios.kngt.tools.FastRandom;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The doors of a cave, derived edge by edge from the seed.
+ *
+ * Every edge between two neighbouring rooms gets a door with probability one
+ * half, at an offset drawn from the same hash. A room left without any door
+ * forces one on an edge picked from its own hash; both rooms sharing that edge
+ * see the same answer, so the doors of any room can be computed without
+ * generating the rest of the cave.
+ *
+ * Doors added afterwards, to connect the cave, are kept in a set.
+ */
+class DoorLayout {
+    final static int EDGE_EAST = 0;
+    final static int EDGE_SOUTH = 1;
+
+    private final long seed;
+    private final int roomsX, roomsY, tilesPerDistance;
+
+    // doors opened on top of the derived ones, see addDoor()
+    private final Set<Long> addedEdges = new HashSet<Long>();
+
+    DoorLayout(final long seed, final int roomsX, final int roomsY, final int tilesPerDistance) {
+        this.seed = seed;
+        this.roomsX = roomsX;
+        this.roomsY = roomsY;
+        this.tilesPerDistance = tilesPerDistance;
+    }
+
+    private long edgeHash(final int cx, final int cy, final int edge) {
+        return FastRandom.mix(seed ^ FastRandom.mix(((long)cy * roomsX + cx) * 2 + edge));
+    }
+
+    private boolean hasEdge(final int cx, final int cy, final int edge) {
+        return edge == EDGE_EAST ? cx < roomsX - 1 : cy < roomsY - 1;
+    }
+
+    private boolean randomDoor(final int cx, final int cy, final int edge) {
+        return hasEdge(cx, cy, edge) && (edgeHash(cx, cy, edge) & 1) != 0;
+    }
+
+    /**
+     * The edge a room without random doors forces open, encoded as
+     * (cy*roomsX+cx)*2+edge like the argument of edgeHash, or -1 if the room
+     * has a door anyway (or no neighbours at all).
+     */
+    private long forcedEdge(final int cx, final int cy) {
+        final boolean north = cy > 0, west = cx > 0;
+        final boolean south = hasEdge(cx, cy, EDGE_SOUTH), east = hasEdge(cx, cy, EDGE_EAST);
+        if ((north && randomDoor(cx, cy - 1, EDGE_SOUTH))
+         || (west && randomDoor(cx - 1, cy, EDGE_EAST))
+         || (south && randomDoor(cx, cy, EDGE_SOUTH))
+         || (east && randomDoor(cx, cy, EDGE_EAST))) {
+            return -1;
+        }
+
+        final int count = (north ? 1 : 0) + (west ? 1 : 0) + (south ? 1 : 0) + (east ? 1 : 0);
+        if (count == 0) {
+            return -1;
+        }
+
+        //Candidates in the order north, west, south, east
+        int pick = (int)((FastRandom.mix(seed ^ ~((long)cy * roomsX + cx)) >>> 1) % count);
+        if (north && pick-- == 0) return ((long)(cy - 1) * roomsX + cx) * 2 + EDGE_SOUTH;
+        if (west && pick-- == 0) return ((long)cy * roomsX + cx - 1) * 2 + EDGE_EAST;
+        if (south && pick-- == 0) return ((long)cy * roomsX + cx) * 2 + EDGE_SOUTH;
+        return ((long)cy * roomsX + cx) * 2 + EDGE_EAST;
+    }
+
+    /**
+     * @return whether there is a door on the east (or south) edge of room (cx, cy)
+     */
+    boolean hasDoor(final int cx, final int cy, final int edge) {
+        if (!hasEdge(cx, cy, edge)) {
+            return false;
+        }
+        if (randomDoor(cx, cy, edge)) {
+            return true;
+        }
+        final long id = ((long)cy * roomsX + cx) * 2 + edge;
+        if (!addedEdges.isEmpty() && addedEdges.contains(id)) {
+            return true;
+        }
+        if (forcedEdge(cx, cy) == id) {
+            return true;
+        }
+        return edge == EDGE_EAST ? forcedEdge(cx + 1, cy) == id : forcedEdge(cx, cy + 1) == id;
+    }
+
+    /**
+     * Open the east (or south) edge of room (cx, cy). Must happen before the
+     * rooms on either side are generated.
+     */
+    void addDoor(final int cx, final int cy, final int edge) {
+        addedEdges.add(((long)cy * roomsX + cx) * 2 + edge);
+    }
+
+    private int doorOffset(final int cx, final int cy, final int edge) {
+        return 2 + (int)((edgeHash(cx, cy, edge) >>> 1) % (tilesPerDistance - 3));
+    }
+
+    /**
+     * Put the doors of the room on it, before its interior is painted.
+     */
+    void applyDoors(final RoomModel room, final int cx, final int cy) {
+        if (cy > 0 && hasDoor(cx, cy - 1, EDGE_SOUTH)) {
+            room.setDoor(RoomModel.DoorPosition.N, doorOffset(cx, cy - 1, EDGE_SOUTH));
+        }
+        if (cx > 0 && hasDoor(cx - 1, cy, EDGE_EAST)) {
+            room.setDoor(RoomModel.DoorPosition.W, doorOffset(cx - 1, cy, EDGE_EAST));
+        }
+        if (hasDoor(cx, cy, EDGE_SOUTH)) {
+            room.setDoor(RoomModel.DoorPosition.S, doorOffset(cx, cy, EDGE_SOUTH));
+        }
+        if (hasDoor(cx, cy, EDGE_EAST)) {
+            room.setDoor(RoomModel.DoorPosition.E, doorOffset(cx, cy, EDGE_EAST));
+        }
+    }
+}
@@ -3,56 +3,341 @@ package com.holidaystudios.kngt.model;
 import com.holidaystudios.kngt.Defs;
 import com.holidaystudios.kngt.TileTypes;
 import com.holidaystudios.kngt.networking.GameServer;
-import com.sun.java_cup.internal.runtime.virtual_parse_stack;
+import com.holidaystudios.kngt.tools.FastRandom;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by tedbjorling on 2014-02-21.
  */
 public class GameModel {
 
+    // caves with more rooms than this are generated room by room as they are visited
+    public final static int EAGER_CAVE_ROOMS = 64 * 64;
+
+    // rooms addKnight() looks at for a free floor tile before giving up
+    public final static int SPAWN_ATTEMPTS = 64;
+
     private CaveModel cave;
-    private List<KnightModel> knights;
+    private FastRandom random = new FastRandom(System.nanoTime());
+    private KnightStore knightStore;
+
+    // the knights of each occupied room, keyed by roomKey(), kept up to date as knights move
+    private Map<Integer, RoomOccupancy> occupancy;
 
-    public GameModel(final String seed, final Integer roomsX, final Integer roomsY) {
-        cave = new CaveModel(seed, roomsX, roomsY);
-        knights =  new ArrayList<KnightModel>();
+    // the rooms where something happened lately, see wakeRoom()
+    private RoomOccupancy[] awakeRooms = new RoomOccupancy[16];
+    private int awakeCount = 0;
+    private int activeRooms = 0, sleepingRooms = 0; // in the last tick
+    private long publishedAt = -1; // getTime() of the last statePublished()
+
+    public GameModel(final String seed, final int roomsX, final int roomsY) {
+        this(roomsX * roomsY > EAGER_CAVE_ROOMS ? CaveModel.createLazy(seed, roomsX, roomsY) : new CaveModel(seed, roomsX, roomsY));
     }
 
-    public KnightModel addKnight(GameServer gsrv) {
-        KnightModel knight = new KnightModel(knights.size());
-        knights.add(knight);
+    public GameModel(final CaveModel cave) {
+        this.cave = cave;
+        knightStore = new KnightStore();
+        occupancy = new HashMap<Integer, RoomOccupancy>();
+    }
+
+    private int roomKey(final int roomX, final int roomY) {
+        return roomY * cave.getRoomsX() + roomX;
+    }
+
+    /**
+     * @return whether nobody stands on tile (x, y) of the room
+     */
+    public boolean isFree(final int roomX, final int roomY, final int x, final int y) {
+        final RoomOccupancy inRoom = occupancy.get(roomKey(roomX, roomY));
+        return inRoom == null || inRoom.isFree(y * Defs.TILES_PER_DISTANCE + x);
+    }
 
-        //Pick a random room
-        final int roomX = (int) Math.floor(Math.random() * cave.getRoomsX());
-        final int roomY = (int) Math.floor(Math.random() * cave.getRoomsY());
+    /**
+     * @return the knight standing on tile (x, y) of the room, or null
+     */
+    public KnightModel getKnightAt(final int roomX, final int roomY, final int x, final int y) {
+        final RoomOccupancy inRoom = occupancy.get(roomKey(roomX, roomY));
+        return inRoom == null ? null : knightStore.get(inRoom.get(y * Defs.TILES_PER_DISTANCE + x));
+    }
+
+    private void leaveRoom(final KnightModel knight) {
+        final int key = roomKey(knight.getRoomX(), knight.getRoomY());
+        final int tile = knight.getPosY() * Defs.TILES_PER_DISTANCE + knight.getPosX();
+        final RoomOccupancy inRoom = occupancy.get(key);
+        if (inRoom != null && inRoom.get(tile) == knight.getKnightID()) {
+            inRoom.clear(tile);
+            wakeRoom(inRoom, knightStore.getTime());
+            cave.unpinRoom(knight.getRoomX(), knight.getRoomY());
+        }
+    }
+
+    /**
+     * Put a knight on a free tile of a room, taking it off the tile it stood
+     * on before.
+     */
+    private void placeKnight(final KnightModel knight, final int roomX, final int roomY, final int x, final int y) {
+        leaveRoom(knight);
+
+        //Occupied rooms of a lazy cave must not be dropped from its cache
+        cave.pinRoom(roomX, roomY);
         knight.setRoom(roomX, roomY);
+        knight.setPosition(x, y);
+
+        RoomOccupancy inRoom = occupancy.get(roomKey(roomX, roomY));
+        if (inRoom == null) {
+            inRoom = new RoomOccupancy(roomKey(roomX, roomY), Defs.TILES_PER_DISTANCE, Defs.TILES_PER_DISTANCE);
+            occupancy.put(roomKey(roomX, roomY), inRoom);
+        }
+        inRoom.put(y * Defs.TILES_PER_DISTANCE + x, knight.getKnightID());
+        wakeRoom(inRoom, knightStore.getTime());
+    }
+
+    /**
+     * Keep a room awake until the given time. Something happening in a room
+     * wakes it until now, a knight walking until the walk ends. A room that
+     * is not awake is asleep: nothing in it changes, so there is nothing new
+     * to publish about it. Rooms only fall asleep once what happened in them
+     * has been published, see statePublished(), and empty rooms are dropped
+     * when they do.
+     */
+    private void wakeRoom(final RoomOccupancy inRoom, final long until) {
+        inRoom.awakeUntil = Math.max(inRoom.awakeUntil, until);
+        if (!inRoom.awake) {
+            inRoom.awake = true;
+            if (awakeCount == awakeRooms.length) {
+                awakeRooms = Arrays.copyOf(awakeRooms, awakeCount * 2);
+            }
+            awakeRooms[awakeCount++] = inRoom;
+        }
+    }
+
+    /**
+     * The knight started a new state, keep its room awake until it ends.
+     */
+    void knightStateStarted(final KnightModel knight) {
+        wakeRoom(occupancy.get(roomKey(knight.getRoomX(), knight.getRoomY())), knightStore.getStateEnd(knight.slot));
+    }
+
+    /**
+     * @return whether anything happened in the room at or after the given
+     *         time on the clock of getTime()
+     */
+    public boolean isRoomAwakeSince(final int roomX, final int roomY, final long time) {
+        final RoomOccupancy inRoom = occupancy.get(roomKey(roomX, roomY));
+        return inRoom != null && inRoom.awakeUntil >= time;
+    }
+
+    /**
+     * The state as of now was sent to the clients. Rooms where nothing has
+     * happened since may fall asleep in the next step, however many steps
+     * are taken before the next publish.
+     */
+    public void statePublished() {
+        publishedAt = knightStore.getTime();
+    }
+
+    /**
+     * @return the simulation clock, in milliseconds
+     */
+    public long getTime() {
+        return knightStore.getTime();
+    }
+
+    /**
+     * @return the number of rooms that were awake in the last tick
+     */
+    public int getActiveRoomCount() {
+        return activeRooms;
+    }
+
+    /**
+     * @return the number of occupied rooms that slept through the last tick
+     */
+    public int getSleepingRoomCount() {
+        return sleepingRooms;
+    }
+
+    /**
+     * Move a knight to another tile of its room.
+     *
+     * @return false if somebody else stands there
+     */
+    boolean stepKnight(final KnightModel knight, final int x, final int y) {
+        final RoomOccupancy inRoom = occupancy.get(roomKey(knight.getRoomX(), knight.getRoomY()));
+        final int to = y * Defs.TILES_PER_DISTANCE + x;
+        if (!inRoom.isFree(to)) {
+            return false;
+        }
+        inRoom.clear(knight.getPosY() * Defs.TILES_PER_DISTANCE + knight.getPosX());
+        inRoom.put(to, knight.getKnightID());
+        knight.setPosition(x, y);
+        wakeRoom(inRoom, knightStore.getTime());
+        return true;
+    }
 
-        //Pick a random "available" position inside of this room
-        final byte[][] bitmap = cave.getRoomBitmap(roomX, roomY);
-        while (true) {
-            final int randPosX = (int) Math.floor(Math.random() * Defs.TILES_PER_DISTANCE);
-            final int randPosY = (int) Math.floor(Math.random() * Defs.TILES_PER_DISTANCE);
-            if (bitmap[randPosY][randPosX] == TileTypes.TILE_FLOOR) {
-                knight.setPosition(randPosX, randPosY);
-                break;
+    /**
+     * Move a knight that stepped onto a door into the room on the other side,
+     * next to the matching door, or onto the door itself if that tile is
+     * taken; from there KnightModel.move() steps back out through the door.
+     * If both are taken, the knight stays where it is.
+     */
+    void passDoor(final KnightModel knight, final Direction direction) {
+        final int last = Defs.TILES_PER_DISTANCE - 1;
+        int roomX = knight.getRoomX(), roomY = knight.getRoomY();
+        int posX = knight.getPosX(), posY = knight.getPosY();
+        int doorX = posX, doorY = posY;
+        switch (direction) {
+            case east:  roomX++; posX = 1;        doorX = 0;    break;
+            case west:  roomX--; posX = last - 1; doorX = last; break;
+            case north: roomY--; posY = last - 1; doorY = last; break;
+            case south: roomY++; posY = 1;        doorY = 0;    break;
+        }
+
+        if (roomX < 0 || roomY < 0 || roomX >= cave.getRoomsX() || roomY >= cave.getRoomsY()) {
+            return;
+        }
+
+        if (cave.getRoom(roomX, roomY).getTile(posX, posY) == TileTypes.TILE_FLOOR && isFree(roomX, roomY, posX, posY)) {
+            placeKnight(knight, roomX, roomY, posX, posY);
+        } else if (isFree(roomX, roomY, doorX, doorY)) {
+            placeKnight(knight, roomX, roomY, doorX, doorY);
+        }
+    }
+
+    /**
+     * Spawn a knight on a free floor tile of a random room.
+     *
+     * @throws IllegalStateException if no room with a free floor tile was found
+     */
+    public KnightModel addKnight(GameServer gsrv) {
+        for (int attempt=0; attempt<SPAWN_ATTEMPTS; attempt++) {
+            final int roomX = random.nextInt(cave.getRoomsX());
+            final int roomY = random.nextInt(cave.getRoomsY());
+            final int tile = RoomOccupancy.pickFreeFloor(cave.getRoom(roomX, roomY).getFloorMask(),
+                    occupancy.get(roomKey(roomX, roomY)), random);
+            if (tile >= 0) {
+                final KnightModel knight = knightStore.add();
+                placeKnight(knight, roomX, roomY, tile % Defs.TILES_PER_DISTANCE, tile / Defs.TILES_PER_DISTANCE);
+                return knight;
+            }
+        }
+        throw new IllegalStateException("no free floor in " + SPAWN_ATTEMPTS + " rooms tried");
+    }
+
+    public KnightStore getKnightStore() {
+        return knightStore;
+    }
+
+    /**
+     * Take a knight out of the game. Its slot in the knight store goes to a
+     * later knight, under a new id.
+     */
+    public void removeKnight(final KnightModel knight) {
+        if (knight.isRemoved()) {
+            return;
+        }
+        leaveRoom(knight);
+        knightStore.remove(knight.getKnightID());
+    }
+
+    /**
+     * @return the knight with the id, or null if it was removed
+     */
+    public KnightModel getKnight(final int knightID) {
+        return knightStore.get(knightID);
+    }
+
+    /**
+     * @return a new list of all knights
+     */
+    public List<KnightModel> getKnights() {
+        final List<KnightModel> knights = new ArrayList<KnightModel>(knightStore.size());
+        for (int slot=0; slot<knightStore.getSlotCount(); slot++) {
+            if (knightStore.getAt(slot) != null) {
+                knights.add(knightStore.getAt(slot));
             }
         }
+        return knights;
+    }
+
+    /**
+     * Add the knights in a room to a list, in the order of the tiles they
+     * stand on.
+     */
+    public void collectKnightsInRoom(final int roomX, final int roomY, final List<KnightModel> into) {
+        final RoomOccupancy inRoom = occupancy.get(roomKey(roomX, roomY));
+        if (inRoom != null) {
+            inRoom.collect(knightStore, into);
+        }
+    }
+
+    /**
+     * @return a new list of the knights in a room
+     */
+    public List<KnightModel> getKnightsInRoom(final int roomX, final int roomY) {
+        final List<KnightModel> inRoom = new ArrayList<KnightModel>();
+        collectKnightsInRoom(roomX, roomY, inRoom);
+        return inRoom;
+    }
+
+    public int getRoomsX() {
+        return cave.getRoomsX();
+    }
+
+    public int getRoomsY() {
+        return cave.getRoomsY();
+    }
 
-        return knight;
+    public boolean hasDoor(final int roomX, final int roomY, final RoomModel.DoorPosition pos) {
+        return cave.getRoom(roomX, roomY).hasDoor(pos);
+    }
+
+    public CaveModel getCave() {
+        return cave;
+    }
+
+    public RoomModel getRoom(final int cx, final int cy) {
+        return cave.getRoom(cx, cy);
     }
 
     public byte[][] getBitmap() {
         return cave.getBitmap();
     }
 
-    public byte[][] getRoomBitmap(final Integer cx, final Integer cy) {
-        return this.cave.getRoomBitmap(cx, cy);
-    }
+    /**
+     * Advance the simulation one fixed step. Only knights whose state ends
+     * and rooms that are awake are looked at.
+     *
+     * @param delta step length in seconds, constant for a running server
+     */
+    public void act(float delta) {
+        //Rooms where nothing happened since the last publish fall asleep
+        for (int k=awakeCount-1; k>=0; k--) {
+            final RoomOccupancy inRoom = awakeRooms[k];
+            if (inRoom.awakeUntil < publishedAt) {
+                inRoom.awake = false;
+                if (inRoom.isEmpty()) {
+                    occupancy.remove(inRoom.key);
+                }
+                awakeRooms[k] = awakeRooms[--awakeCount];
+                awakeRooms[awakeCount] = null;
+            }
+        }
 
-    public void act(int milliSecondsDelta) {
+        knightStore.tick(delta);
+        for (int i=0; i<knightStore.getEndedCount(); i++) {
+            final KnightModel knight = knightStore.getEnded(i);
+            if (knight != null) {
+                knightStateStarted(knight);
+            }
+        }
 
+        activeRooms = awakeCount;
+        sleepingRooms = occupancy.size() - awakeCount;
     }
 }
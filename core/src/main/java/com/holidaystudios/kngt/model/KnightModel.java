@@ -1,15 +1,5 @@
 package com.holidaystudios.kngt.model;
 
-import com.holidaystudios.kngt.TileTypes;
-import com.holidaystudios.kngt.networking.GameClient;
-import com.holidaystudios.kngt.networking.GamePacketProvider;
-import com.holidaystudios.kngt.networking.GameServer;
-
-import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.nio.ByteBuffer;
-
 /**
  * Created by tedbjorling on 2014-02-25.
  */
@@ -21,166 +11,153 @@ public class KnightModel {
         stand, walk
     };
 
+    // the fields of this knight live in slot of store, as long as it holds knightID
+    final KnightStore store;
+    final int slot;
     final int knightID;
-    State state = State.stand;
-    float stateTime = 0.0f; // in seconds
-    float stateDuration = 0.0f; // in seconds
-    float stateProgress = 0.0f; // from 0.0f to 1.0f inclusive
-    Direction direction = Direction.north;
-
-    int roomX;
-    int roomY;
-    int posX;
-    int posY;
 
     public int getKnightID() {
         return knightID;
     }
 
+    /**
+     * @return whether the knight was taken out of its store, its getters then
+     *         tell about whatever took its slot
+     */
+    public boolean isRemoved() {
+        return store.knightID[slot] != knightID;
+    }
+
     public State getState() {
-        return state;
+        return decodeState(store.state[slot]);
     }
 
     public float getStateTime() {
-        return stateTime;
+        return store.getStateTime(slot);
     }
 
     public float getStateDuration() {
-        return stateDuration;
+        return store.stateDuration[slot];
     }
 
     public float getStateProgress() {
-        return stateProgress;
+        return store.getStateProgress(slot);
     }
 
     public Direction getDirection() {
-        return direction;
+        return decodeDirection(store.direction[slot]);
     }
 
-    public void publishKnight(DatagramSocket serverSocket, InetAddress IPAddress) throws IOException {
-        GamePacketProvider packetProvider = GameServer.getInstance().getPacketProvider();
-        ByteBuffer sendData = packetProvider.getSendBuffer();
-        sendData.put(GameServer.SR_PACKET_KNIGHT_STATE);
-        sendData.putInt(knightID);
-
+    static byte encodeState(State state) {
         switch(state) {
-            case stand:
-                sendData.put((byte)1);
-                break;
             case walk:
-                sendData.put((byte)2);
-                break;
+                return (byte)2;
+            case stand:
+            default:
+                return (byte)1;
         }
+    }
 
-        sendData.putFloat(stateTime);
-        sendData.putFloat(stateDuration);
-        sendData.putFloat(stateProgress);
+    static State decodeState(byte code) {
+        switch(code) {
+            case (byte)2:
+                return State.walk;
+            case (byte)1:
+            default:
+                return State.stand;
+        }
+    }
 
+    static byte encodeDirection(Direction direction) {
         switch (direction) {
             case east:
-                sendData.put((byte)1);
-                break;
+                return (byte)1;
             case west:
-                sendData.put((byte)2);
-                break;
-            case north:
-                sendData.put((byte)3);
-                break;
+                return (byte)2;
             case south:
-                sendData.put((byte)4);
-                break;
+                return (byte)4;
+            case north:
+            default:
+                return (byte)3;
         }
-
-        sendData.putInt(posX);
-        sendData.putInt(posY);
-
-        packetProvider.send(serverSocket, IPAddress, GameClient.CLIENT_PORT);
     }
 
-    public void consumePublishedKnight(ByteBuffer bb) {
-        switch(bb.get()) {
+    static Direction decodeDirection(byte code) {
+        switch(code) {
             case (byte)1:
-                state = State.stand;
-                break;
+                return Direction.east;
             case (byte)2:
-                state = State.walk;
-                break;
-        }
-
-        stateTime = bb.getFloat();
-        stateDuration = bb.getFloat();
-        stateProgress = bb.getFloat();
-
-        switch(bb.get()) {
-            case (byte)1:
-                direction = Direction.east;
-                break;
-            case (byte)2:
-                direction = Direction.west;
-                break;
-            case (byte)3:
-                direction = Direction.north;
-                break;
+                return Direction.west;
             case (byte)4:
-                direction = Direction.south;
-                break;
+                return Direction.south;
+            case (byte)3:
+            default:
+                return Direction.north;
         }
-
-        posX = bb.getInt();
-        posY = bb.getInt();
     }
 
-    public KnightModel(int _knightID) {
+    /**
+     * Knights are made by KnightStore.add().
+     */
+    KnightModel(KnightStore _store, int _slot, int _knightID) {
+        store = _store;
+        slot = _slot;
         knightID = _knightID;
     }
 
     public void move(GameModel gameModel, Direction _direction) {
-        if(state == State.stand) {
+        if(store.state[slot] == KnightStore.STATE_STAND) {
             //What is the target tile?
-            int px= posX; int py = posY;
+            int px = store.posX[slot]; int py = store.posY[slot];
             switch (_direction) {
                 case east: px++; break;
-                case west: py--; break;
+                case west: px--; break;
                 case north: py--; break;
-                case south: px++; break;
+                case south: py++; break;
             }
 
-            final int targetTile = gameModel.getRoomBitmap(roomX, roomY)[py][px];
-            if (targetTile == TileTypes.TILE_FLOOR) {
-                posX = px; posY = py;
+            final RoomModel room = gameModel.getRoom(store.roomX[slot], store.roomY[slot]);
+            if (!room.isInside(px, py)) {
+                //Only a knight standing in a door can step out of the room, through that door
+                if (!room.isDoor(store.posX[slot], store.posY[slot])) {
+                    return;
+                }
+                gameModel.passDoor(this, _direction);
+
+            //Knights bump into each other like into walls
+            } else if (room.isFloor(px, py)) {
+                gameModel.stepKnight(this, px, py);
 
-            } else if (targetTile == TileTypes.TILE_DOOR) {
-//                for (ControllerListener vl : listeners)
-//                    vl.handleControllerEvent(ControllerListener.EventType.knightNewRoom, this, d);
+            } else if (room.isDoor(px, py)) {
+                gameModel.passDoor(this, _direction);
             }
 
-            direction = _direction;
-            state = State.walk;
-            stateTime = 0.0f;
-            stateDuration = WALK_DURATION;
+            store.direction[slot] = encodeDirection(_direction);
+            store.startState(slot, KnightStore.STATE_WALK, WALK_DURATION);
+            gameModel.knightStateStarted(this);
         }
     }
 
     public int getRoomX() {
-        return roomX;
+        return store.roomX[slot];
     }
     public int getRoomY() {
-        return roomY;
+        return store.roomY[slot];
     }
     public int getPosX() {
-        return posX;
+        return store.posX[slot];
     }
     public int getPosY() {
-        return posY;
+        return store.posY[slot];
     }
 
     public void setRoom(int roomX, int roomY) {
-        this.roomX = roomX;
-        this.roomY = roomY;
+        store.roomX[slot] = roomX;
+        store.roomY[slot] = roomY;
     }
 
     public void setPosition(int posX, int posY) {
-        this.posX = posX;
-        this.posX = posY;
+        store.posX[slot] = posX;
+        store.posY[slot] = posY;
     }
 }
@@ -0,0 +1,223 @@
+package com.holidaystudios.kngt.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Quantized copy of the replicated state of one knight, the unit of delta
+ * compression in SR_PACKET_KNIGHT_SNAPSHOT.
+ *
+ * An entry on the wire is the knight id, a field mask and, unless the mask has
+ * FIELD_FULL set, the age of the baseline it was encoded against (in snapshot
+ * sequence numbers). Only the fields flagged in the mask follow; positions are
+ * sent as signed byte deltas against the baseline. An entry with an empty
+ * mask tells the client to forget the knight.
+ */
+public class KnightSnapshot {
+
+    public final static int FIELD_STATE     = 0x01;
+    public final static int FIELD_TIME      = 0x02;
+    public final static int FIELD_DURATION  = 0x04;
+    public final static int FIELD_PROGRESS  = 0x08;
+    public final static int FIELD_DIRECTION = 0x10;
+    public final static int FIELD_POSITION  = 0x20;
+    public final static int FIELD_ROOM      = 0x40;
+    public final static int FIELD_FULL      = 0x80; // no baseline, all fields present and absolute
+
+    public final static int ALL_FIELDS = 0x7f;
+    public final static int REMOVED = 0x00;
+
+    // id, mask, baseline age, state, time, duration, progress, direction, position, room
+    public final static int MAXIMUM_ENTRY_LENGTH = 4 + 1 + 1 + 1 + 2 + 2 + 1 + 1 + 2 * 2 + 2 * 2;
+
+    int knightID;
+    int sequence;
+    boolean removed;
+
+    byte state;
+    int time;      // stateTime in milliseconds, saturated to an unsigned short
+    int duration;  // stateDuration in milliseconds, saturated to an unsigned short
+    int progress;  // stateProgress scaled to 0..255
+    byte direction;
+    int posX, posY;
+    int roomX, roomY;
+
+    public int getKnightID() {
+        return knightID;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(int knightID) {
+        this.knightID = knightID;
+        this.removed = true;
+    }
+
+    private static int quantizeSeconds(float seconds) {
+        return Math.max(0, Math.min(0xffff, Math.round(seconds * 1000.0f)));
+    }
+
+    public void capture(KnightModel knight) {
+        final KnightStore store = knight.store;
+        final int slot = knight.slot;
+        knightID = store.knightID[slot];
+        removed = false;
+        state = store.state[slot];
+        time = quantizeSeconds(store.getStateTime(slot));
+        duration = quantizeSeconds(store.stateDuration[slot]);
+        progress = Math.round(Math.max(0.0f, Math.min(1.0f, store.getStateProgress(slot))) * 255.0f);
+        direction = store.direction[slot];
+        posX = store.posX[slot];
+        posY = store.posY[slot];
+        roomX = store.roomX[slot];
+        roomY = store.roomY[slot];
+    }
+
+    public void applyTo(KnightModel knight) {
+        final KnightStore store = knight.store;
+        final int slot = knight.slot;
+        // through the enums, so unknown codes from the wire become the defaults
+        store.state[slot] = KnightModel.encodeState(KnightModel.decodeState(state));
+        // progress follows from time and duration
+        store.stateDuration[slot] = duration / 1000.0f;
+        store.setStateTime(slot, time / 1000.0f);
+        store.direction[slot] = KnightModel.encodeDirection(KnightModel.decodeDirection(direction));
+        store.posX[slot] = posX;
+        store.posY[slot] = posY;
+        store.roomX[slot] = roomX;
+        store.roomY[slot] = roomY;
+    }
+
+    public void set(KnightSnapshot other) {
+        knightID = other.knightID;
+        sequence = other.sequence;
+        removed = other.removed;
+        state = other.state;
+        time = other.time;
+        duration = other.duration;
+        progress = other.progress;
+        direction = other.direction;
+        posX = other.posX;
+        posY = other.posY;
+        roomX = other.roomX;
+        roomY = other.roomY;
+    }
+
+    /**
+     * @return the mask of fields that differ from the baseline, or FIELD_FULL
+     *         if the changes cannot be expressed as a delta against it
+     */
+    public int changedFields(KnightSnapshot baseline) {
+        int mask = 0;
+        if(state != baseline.state) mask |= FIELD_STATE;
+        if(time != baseline.time) mask |= FIELD_TIME;
+        if(duration != baseline.duration) mask |= FIELD_DURATION;
+        if(progress != baseline.progress) mask |= FIELD_PROGRESS;
+        if(direction != baseline.direction) mask |= FIELD_DIRECTION;
+        if(posX != baseline.posX || posY != baseline.posY) {
+            final int dx = posX - baseline.posX;
+            final int dy = posY - baseline.posY;
+            if(dx < Byte.MIN_VALUE || dx > Byte.MAX_VALUE || dy < Byte.MIN_VALUE || dy > Byte.MAX_VALUE)
+                return FIELD_FULL;
+            mask |= FIELD_POSITION;
+        }
+        if(roomX != baseline.roomX || roomY != baseline.roomY) mask |= FIELD_ROOM;
+        return mask;
+    }
+
+    /**
+     * Write one entry. The baseline is ignored when mask has FIELD_FULL set.
+     */
+    public void write(ByteBuffer bb, int mask, KnightSnapshot baseline, int baselineAge) {
+        final boolean full = (mask & FIELD_FULL) != 0;
+        if(full)
+            mask = FIELD_FULL | ALL_FIELDS;
+
+        bb.putInt(knightID);
+        bb.put((byte)mask);
+        if(!full)
+            bb.put((byte)baselineAge);
+
+        if((mask & FIELD_STATE) != 0) bb.put(state);
+        if((mask & FIELD_TIME) != 0) bb.putShort((short)time);
+        if((mask & FIELD_DURATION) != 0) bb.putShort((short)duration);
+        if((mask & FIELD_PROGRESS) != 0) bb.put((byte)progress);
+        if((mask & FIELD_DIRECTION) != 0) bb.put(direction);
+        if((mask & FIELD_POSITION) != 0) {
+            if(full) {
+                bb.putShort((short)posX);
+                bb.putShort((short)posY);
+            } else {
+                bb.put((byte)(posX - baseline.posX));
+                bb.put((byte)(posY - baseline.posY));
+            }
+        }
+        if((mask & FIELD_ROOM) != 0) {
+            bb.putShort((short)roomX);
+            bb.putShort((short)roomY);
+        }
+    }
+
+    public static void writeRemoval(ByteBuffer bb, int knightID) {
+        bb.putInt(knightID);
+        bb.put((byte)REMOVED);
+    }
+
+    /**
+     * Step over the fields of a delta entry, following its id, mask and
+     * baseline age, without a baseline to apply them to.
+     */
+    public static void skip(ByteBuffer bb, int mask) {
+        int length = 0;
+        if((mask & FIELD_STATE) != 0) length += 1;
+        if((mask & FIELD_TIME) != 0) length += 2;
+        if((mask & FIELD_DURATION) != 0) length += 2;
+        if((mask & FIELD_PROGRESS) != 0) length += 1;
+        if((mask & FIELD_DIRECTION) != 0) length += 1;
+        if((mask & FIELD_POSITION) != 0) length += 2;
+        if((mask & FIELD_ROOM) != 0) length += 4;
+        bb.position(bb.position() + length);
+    }
+
+    /**
+     * Read the fields following the id, mask and baseline age of an entry. The
+     * baseline must be the snapshot the entry was encoded against, and is ignored
+     * when mask has FIELD_FULL set.
+     */
+    public void read(ByteBuffer bb, int knightID, int mask, KnightSnapshot baseline) {
+        final boolean full = (mask & FIELD_FULL) != 0;
+        if(!full) {
+            set(baseline);
+        }
+        this.knightID = knightID;
+        this.removed = false;
+
+        if((mask & FIELD_STATE) != 0) state = bb.get();
+        if((mask & FIELD_TIME) != 0) time = bb.getShort() & 0xffff;
+        if((mask & FIELD_DURATION) != 0) duration = bb.getShort() & 0xffff;
+        if((mask & FIELD_PROGRESS) != 0) progress = bb.get() & 0xff;
+        if((mask & FIELD_DIRECTION) != 0) direction = bb.get();
+        if((mask & FIELD_POSITION) != 0) {
+            if(full) {
+                posX = bb.getShort() & 0xffff;
+                posY = bb.getShort() & 0xffff;
+            } else {
+                posX += bb.get();
+                posY += bb.get();
+            }
+        }
+        if((mask & FIELD_ROOM) != 0) {
+            roomX = bb.getShort() & 0xffff;
+            roomY = bb.getShort() & 0xffff;
+        }
+    }
+}
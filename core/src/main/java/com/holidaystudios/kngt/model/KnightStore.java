@@ -0,0 +1,308 @@
+package com.holidaystudios.kngt.model;
+
+import com.holidaystudios.kngt.tools.TimerWheel;
+
+import java.util.Arrays;
+
+/**
+ * The fields of every knight of a game, one primitive array per field and one
+ * slot per knight. KnightModel is a view of one slot, so ticking and snapshot
+ * encoding walk a few flat arrays instead of chasing objects.
+ *
+ * States and directions are kept as their wire codes, see
+ * KnightModel.encodeState() and encodeDirection(). A state remembers when it
+ * started on the clock of the store, in milliseconds, and the time in the
+ * state is worked out from that when asked for. States that run out, like a
+ * walk, have a timer on a TimerWheel, so a tick only touches the knights
+ * whose state ends. A client's store is never advanced, its times are as the
+ * server last sent them.
+ *
+ * Knight ids are handles: the slot in the low INDEX_BITS bits and above them
+ * a generation, bumped every time the slot is reused, so the id of a removed
+ * knight never finds its successor. Ids are never 0.
+ *
+ * The server allocates knights with add(), which reuses free slots. A client
+ * mirrors the server's slots with put(), giving every id the server sent the
+ * slot it has there. A store is filled by one or the other, not both.
+ */
+public class KnightStore {
+    private final static int INITIAL_CAPACITY = 16;
+
+    public final static int INDEX_BITS = 20;
+    public final static int MAXIMUM_KNIGHTS = 1 << INDEX_BITS;
+    private final static int INDEX_MASK = MAXIMUM_KNIGHTS - 1;
+    private final static int GENERATION_LIMIT = (1 << (31 - INDEX_BITS)) - 1; // ids stay positive
+
+    final static byte STATE_NONE = 0; // free slot
+    final static byte STATE_STAND = 1;
+    final static byte STATE_WALK = 2;
+
+    int count = 0; // slots in use or on the free list
+
+    private int[] generation; // of the current or last knight in each slot
+    private int[] nextFree;
+    private int freeHead = -1;
+    private int live = 0;
+
+    int[] knightID; // 0 in a free slot
+    byte[] state;
+    long[] stateStart; // in milliseconds on the clock of the store
+    float[] stateDuration; // in seconds, 0.0f for states that do not end
+    byte[] direction;
+    int[] roomX, roomY;
+    int[] posX, posY;
+
+    private KnightModel[] views;
+
+    private double clock = 0.0; // in seconds
+    private final TimerWheel timers;
+    private int[] ended = new int[INITIAL_CAPACITY]; // slots whose state ended in the last tick
+    private int endedCount = 0;
+    private final TimerWheel.Listener stateEnded = new TimerWheel.Listener() {
+        @Override
+        public void expired(final int slot) {
+            // only walks end so far
+            state[slot] = STATE_STAND;
+            stateStart[slot] = timers.getTime();
+            stateDuration[slot] = 0.0f;
+            if (endedCount == ended.length) {
+                ended = Arrays.copyOf(ended, endedCount * 2);
+            }
+            ended[endedCount++] = slot;
+        }
+    };
+
+    public KnightStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public KnightStore(final int capacity) {
+        generation = new int[capacity];
+        nextFree = new int[capacity];
+        knightID = new int[capacity];
+        state = new byte[capacity];
+        stateStart = new long[capacity];
+        stateDuration = new float[capacity];
+        direction = new byte[capacity];
+        roomX = new int[capacity];
+        roomY = new int[capacity];
+        posX = new int[capacity];
+        posY = new int[capacity];
+        views = new KnightModel[capacity];
+        timers = new TimerWheel(capacity, 0);
+    }
+
+    private void grow(final int minimum) {
+        int capacity = Math.max(INITIAL_CAPACITY, knightID.length);
+        while (capacity < minimum) {
+            capacity *= 2;
+        }
+        generation = Arrays.copyOf(generation, capacity);
+        nextFree = Arrays.copyOf(nextFree, capacity);
+        knightID = Arrays.copyOf(knightID, capacity);
+        state = Arrays.copyOf(state, capacity);
+        stateStart = Arrays.copyOf(stateStart, capacity);
+        stateDuration = Arrays.copyOf(stateDuration, capacity);
+        direction = Arrays.copyOf(direction, capacity);
+        roomX = Arrays.copyOf(roomX, capacity);
+        roomY = Arrays.copyOf(roomY, capacity);
+        posX = Arrays.copyOf(posX, capacity);
+        posY = Arrays.copyOf(posY, capacity);
+        views = Arrays.copyOf(views, capacity);
+        timers.ensureCapacity(capacity);
+    }
+
+    public static int indexOf(final int id) {
+        return id & INDEX_MASK;
+    }
+
+    public static int generationOf(final int id) {
+        return id >>> INDEX_BITS;
+    }
+
+    private KnightModel occupy(final int slot, final int id) {
+        if (knightID[slot] == 0) {
+            live++;
+        }
+        knightID[slot] = id;
+        startState(slot, STATE_STAND, 0.0f);
+        direction[slot] = KnightModel.encodeDirection(Direction.north);
+        roomX[slot] = roomY[slot] = posX[slot] = posY[slot] = 0;
+        views[slot] = new KnightModel(this, slot, id);
+        return views[slot];
+    }
+
+    /**
+     * @return a standing knight, facing north, with a new id
+     */
+    public KnightModel add() {
+        final int slot;
+        if (freeHead != -1) {
+            slot = freeHead;
+            freeHead = nextFree[slot];
+        } else {
+            if (count == MAXIMUM_KNIGHTS) {
+                throw new IllegalStateException("no more than " + MAXIMUM_KNIGHTS + " knights");
+            }
+            if (count == knightID.length) {
+                grow(count + 1);
+            }
+            slot = count++;
+        }
+        generation[slot] = generation[slot] % GENERATION_LIMIT + 1;
+        return occupy(slot, (generation[slot] << INDEX_BITS) | slot);
+    }
+
+    /**
+     * The knight with an id allocated by another store, replacing whatever
+     * knight was in its slot before.
+     */
+    public KnightModel put(final int id) {
+        final int slot = indexOf(id);
+        if (slot >= knightID.length) {
+            grow(slot + 1);
+        }
+        count = Math.max(count, slot + 1);
+        if (knightID[slot] == id) {
+            return views[slot];
+        }
+        generation[slot] = generationOf(id);
+        return occupy(slot, id);
+    }
+
+    /**
+     * @return false if there was no knight with the id, it may have been
+     *         removed already
+     */
+    public boolean remove(final int id) {
+        if (!contains(id)) {
+            return false;
+        }
+        final int slot = indexOf(id);
+        knightID[slot] = 0;
+        state[slot] = STATE_NONE;
+        timers.cancel(slot);
+        views[slot] = null;
+        nextFree[slot] = freeHead;
+        freeHead = slot;
+        live--;
+        return true;
+    }
+
+    public boolean contains(final int id) {
+        final int slot = indexOf(id);
+        return id != 0 && slot < count && knightID[slot] == id;
+    }
+
+    /**
+     * @return the knight with the id, or null if there is none
+     */
+    public KnightModel get(final int id) {
+        return contains(id) ? views[indexOf(id)] : null;
+    }
+
+    /**
+     * @return the number of knights
+     */
+    public int size() {
+        return live;
+    }
+
+    /**
+     * @return one more than the highest slot ever used, for walking the
+     *         slots with getAt()
+     */
+    public int getSlotCount() {
+        return count;
+    }
+
+    /**
+     * @return the knight in a slot, null if the slot is free
+     */
+    public KnightModel getAt(final int slot) {
+        return views[slot];
+    }
+
+    /**
+     * Put a knight in a state starting now. A state with a duration ends in
+     * standing once the duration has passed.
+     */
+    void startState(final int slot, final byte newState, final float duration) {
+        state[slot] = newState;
+        stateStart[slot] = timers.getTime();
+        stateDuration[slot] = duration;
+        if (duration > 0.0f) {
+            timers.schedule(slot, getStateEnd(slot));
+        } else {
+            timers.cancel(slot);
+        }
+    }
+
+    /**
+     * @return the time, on the clock of the store, at which the state of the
+     *         knight ends, or when it started for states that do not end
+     */
+    long getStateEnd(final int slot) {
+        return stateStart[slot] + (long)Math.ceil(stateDuration[slot] * 1000.0f);
+    }
+
+    /**
+     * @return seconds since the knight entered its state, at most its duration
+     */
+    float getStateTime(final int slot) {
+        return Math.min(stateDuration[slot], (timers.getTime() - stateStart[slot]) / 1000.0f);
+    }
+
+    /**
+     * Change when the current state of a knight started, as received from
+     * the server.
+     */
+    void setStateTime(final int slot, final float seconds) {
+        stateStart[slot] = timers.getTime() - Math.round(seconds * 1000.0f);
+    }
+
+    /**
+     * @return from 0.0f to 1.0f inclusive, 0.0f for states that do not end
+     */
+    float getStateProgress(final int slot) {
+        return stateDuration[slot] > 0.0f ? getStateTime(slot) / stateDuration[slot] : 0.0f;
+    }
+
+    /**
+     * @return the number of knights in a state that will end
+     */
+    public int getTimedCount() {
+        return timers.getScheduledCount();
+    }
+
+    /**
+     * @return the clock of the store, in milliseconds
+     */
+    public long getTime() {
+        return timers.getTime();
+    }
+
+    /**
+     * Advance the clock, ending the states that run out on the way.
+     */
+    public void tick(final float delta) {
+        endedCount = 0;
+        clock += delta;
+        timers.advance(Math.round(clock * 1000.0), stateEnded);
+    }
+
+    /**
+     * @return the number of knights whose state ended in the last tick
+     */
+    public int getEndedCount() {
+        return endedCount;
+    }
+
+    /**
+     * @return the i:th knight whose state ended in the last tick, null if it
+     *         was removed since
+     */
+    public KnightModel getEnded(final int i) {
+        return views[ended[i]];
+    }
+}
@@ -0,0 +1,43 @@
+package com.holidaystudios.kngt.model;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates a range of the rooms of a cave, splitting the range until it is
+ * small enough. Kept out of CaveModel so that a cave generated on one thread
+ * never loads ForkJoinPool, which Android only has from API level 21.
+ */
+class ParallelRoomTask extends RecursiveAction {
+    private final static long serialVersionUID = 1L;
+
+    private final static int ROOMS_PER_TASK = 256;
+
+    private final CaveModel cave;
+    private final int from, to;
+
+    private ParallelRoomTask(final CaveModel cave, final int from, final int to) {
+        this.cave = cave;
+        this.from = from;
+        this.to = to;
+    }
+
+    static void createRooms(final CaveModel cave, final int parallelism) {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ParallelRoomTask(cave, 0, cave.getRoomsX() * cave.getRoomsY()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= ROOMS_PER_TASK) {
+            cave.createRooms(from, to);
+        } else {
+            final int middle = (from + to) >>> 1;
+            invokeAll(new ParallelRoomTask(cave, from, middle), new ParallelRoomTask(cave, middle, to));
+        }
+    }
+}
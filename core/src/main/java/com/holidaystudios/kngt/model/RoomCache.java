@@ -0,0 +1,176 @@
+package com.holidaystudios.kngt.model;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The generated rooms of a lazy cave, kept within a memory budget.
+ *
+ * Rooms are generated from the seed on a miss. When the budget is exceeded the
+ * least recently used rooms are dropped, and generated again if they are asked
+ * for later. Pinned rooms (the ones with knights in them) are never dropped;
+ * they are kept apart from the LRU order, so they may push the cache over its
+ * budget but never slow down eviction.
+ *
+ * The tiles of interned rooms are held by the ShapeRegistry of the cave and
+ * count against the budget there. Dropped rooms release their shape, so the
+ * registry shrinks with the cache.
+ */
+public class RoomCache {
+    public final static long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private static class Pinned {
+        final RoomModel room;
+        int count;
+
+        Pinned(final RoomModel room) {
+            this.room = room;
+        }
+    }
+
+    private final CaveModel cave;
+    private final long budget;
+    private long used = 0; // by the rooms themselves, without their shapes
+
+    private final LinkedHashMap<Long, RoomModel> unpinned = new LinkedHashMap<Long, RoomModel>(16, 0.75f, true);
+    private final Map<Long, Pinned> pinned = new HashMap<Long, Pinned>();
+    private final BitSet evicted; // by key(), rooms dropped at least once, null if the cave has too many rooms to track
+
+    private long hits, misses, evictions, regenerations;
+
+    RoomCache(final CaveModel cave, final long budget) {
+        this.cave = cave;
+        this.budget = budget;
+        this.evicted = (long)cave.getRoomsX() * cave.getRoomsY() <= Integer.MAX_VALUE ? new BitSet() : null;
+    }
+
+    private long key(final int cx, final int cy) {
+        return (long)cy * cave.getRoomsX() + cx;
+    }
+
+    private RoomModel generate(final int cx, final int cy, final Long key) {
+        misses++;
+        if (evicted != null && evicted.get((int)key.longValue())) {
+            regenerations++;
+        }
+        final RoomModel room = cave.createRoom(cx, cy);
+        used += room.getMemoryEstimate();
+        return room;
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<Long, RoomModel>> eldest = unpinned.entrySet().iterator();
+        while (getUsed() > budget && eldest.hasNext()) {
+            final Map.Entry<Long, RoomModel> entry = eldest.next();
+            used -= entry.getValue().getMemoryEstimate();
+            entry.getValue().releaseShape();
+            if (evicted != null) {
+                evicted.set((int)entry.getKey().longValue());
+            }
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public RoomModel get(final int cx, final int cy) {
+        final Long key = key(cx, cy);
+
+        final Pinned pin = pinned.get(key);
+        if (pin != null) {
+            hits++;
+            return pin.room;
+        }
+
+        RoomModel room = unpinned.get(key);
+        if (room != null) {
+            hits++;
+            return room;
+        }
+
+        //Make room before adding it, the room we return is never the one dropped
+        room = generate(cx, cy, key);
+        trim();
+        unpinned.put(key, room);
+        return room;
+    }
+
+    /**
+     * Keep a room in memory until a matching unpin(). Pins are counted.
+     */
+    public void pin(final int cx, final int cy) {
+        final Long key = key(cx, cy);
+
+        Pinned pin = pinned.get(key);
+        if (pin == null) {
+            RoomModel room = unpinned.remove(key);
+            if (room == null) {
+                room = generate(cx, cy, key);
+            }
+            pin = new Pinned(room);
+            pinned.put(key, pin);
+        }
+        pin.count++;
+    }
+
+    public void unpin(final int cx, final int cy) {
+        final Long key = key(cx, cy);
+
+        final Pinned pin = pinned.get(key);
+        if (pin == null || --pin.count > 0) {
+            return;
+        }
+        pinned.remove(key);
+        unpinned.put(key, pin.room);
+        trim();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the estimated memory held by the cached rooms and their shapes,
+     *         in bytes
+     */
+    public long getUsed() {
+        return used + cave.getShapes().getMemoryEstimate();
+    }
+
+    public int getRoomCount() {
+        return unpinned.size() + pinned.size();
+    }
+
+    public int getPinnedCount() {
+        return pinned.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the misses on rooms that had been generated before and evicted
+     *         at least once, not counted in caves of more than
+     *         Integer.MAX_VALUE rooms
+     */
+    public long getRegenerations() {
+        return regenerations;
+    }
+
+    @Override
+    public String toString() {
+        return getRoomCount() + " rooms (" + pinned.size() + " pinned), " + (getUsed() / 1024) + "/" + (budget / 1024) + " kB, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions, " + regenerations + " regenerations";
+    }
+}
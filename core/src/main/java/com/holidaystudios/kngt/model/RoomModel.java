@@ -4,15 +4,15 @@ import com.badlogic.gdx.math.Rectangle;
 import com.holidaystudios.kngt.TileTypes;
 import com.holidaystudios.kngt.networking.GamePacketProvider;
 import com.holidaystudios.kngt.networking.GameServer;
-import com.holidaystudios.kngt.tools.RandomUtils;
+import com.holidaystudios.kngt.networking.RoomCodec;
+import com.holidaystudios.kngt.tools.FastRandom;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
 
 /**
  * Created by tedbjorling on 2014-02-20.
@@ -23,12 +23,22 @@ public class RoomModel {
         S, W, E, N
     }
 
-    private final static Integer MIN_WALL_LENGTH = 3;
-    private Integer posX, posY, pixelX, pixelY, pixelWidth, pixelHeight, tilesPerDistance;
-    private byte[][] bitmap;
-    private Map<DoorPosition, Integer> doors = new HashMap<DoorPosition, Integer>();
+    private final static int MIN_WALL_LENGTH = 3;
 
-    public RoomModel(final Integer posX, final Integer posY, final Integer tilesPerDistance) {
+    private final int posX, posY, pixelX, pixelY, pixelWidth, pixelHeight, tilesPerDistance;
+    private byte[] tiles; // row-major, see index()
+    private TileMask floor, wall, door; // kept in sync with tiles by setTile()
+    private ShapeRegistry.Shape shape; // owner of tiles and masks once interned, see intern()
+    private static final DoorPosition[] DOOR_POSITIONS = DoorPosition.values();
+    // order in which the first door of a three door room is paired with the others
+    private static final DoorPosition[] PAIR_ORDER = {DoorPosition.E, DoorPosition.S, DoorPosition.N, DoorPosition.W};
+
+    private int doorMask; // bit 1 << ordinal set for each door
+    private int doorOffsets; // eight bits per door, at 8 * ordinal
+    private FastRandom random;
+
+    public RoomModel(final int posX, final int posY, final int tilesPerDistance, final FastRandom random) {
+        this.random = random;
         this.posX = posX;
         this.posY = posY;
 
@@ -40,105 +50,250 @@ public class RoomModel {
         this.tilesPerDistance = tilesPerDistance;
 
         //Init the underlying room bitmap
-        initBitmap();
+        this.tiles = new byte[this.pixelWidth * this.pixelHeight];
+        Arrays.fill(this.tiles, TileTypes.TILE_NONE);
+        this.floor = new TileMask(this.pixelWidth, this.pixelHeight);
+        this.wall = new TileMask(this.pixelWidth, this.pixelHeight);
+        this.door = new TileMask(this.pixelWidth, this.pixelHeight);
     }
 
+    /**
+     * A room received from the server, nothing but its tiles is known.
+     */
+    public RoomModel(final int width, final int height, final byte[] tiles) {
+        this(-1, -1, width, height, tiles);
+    }
 
-    private void initBitmap() {
-        bitmap = new byte[this.pixelHeight][];
-        for (int y=0; y<this.pixelHeight; y++) {
-            bitmap[y] = new byte[this.pixelWidth];
-            for (int x=0; x<this.pixelWidth; x++) {
-                bitmap[y][x] = TileTypes.TILE_NONE;
-            }
+    /**
+     * A room whose tiles were made elsewhere, such as a cave file.
+     */
+    public RoomModel(final int posX, final int posY, final int width, final int height, final byte[] tiles) {
+        this.posX = posX;
+        this.posY = posY;
+        this.pixelX = width*posX;
+        this.pixelY = height*posY;
+        this.pixelWidth = width;
+        this.pixelHeight = height;
+        this.tilesPerDistance = width;
+        this.tiles = tiles;
+        this.floor = new TileMask(width, height);
+        this.wall = new TileMask(width, height);
+        this.door = new TileMask(width, height);
+        for (int i=0; i<tiles.length; i++) {
+            setTileAt(i, tiles[i]);
         }
     }
 
-    private boolean hasAnyDoor(final Map<DoorPosition, Integer> _doors) {
-        return _doors.containsKey(DoorPosition.N)
-            || _doors.containsKey(DoorPosition.S)
-            || _doors.containsKey(DoorPosition.E)
-            || _doors.containsKey(DoorPosition.W);
+    private static int doorBit(final DoorPosition pos) {
+        return 1 << pos.ordinal();
     }
 
     public boolean hasAnyDoor() {
-        return this.hasAnyDoor(this.doors);
+        return this.doorMask != 0;
     }
 
-    private boolean hasDoor(final Map<DoorPosition, Integer> _doors, final DoorPosition pos) {
-        return _doors.containsKey(pos);
+    private static boolean hasDoor(final int mask, final DoorPosition pos) {
+        return (mask & doorBit(pos)) != 0;
     }
 
     public boolean hasDoor(final DoorPosition pos) {
-        return this.hasDoor(this.doors, pos);
+        return hasDoor(this.doorMask, pos);
     }
 
-    private Integer getDoor(final Map<DoorPosition, Integer> _doors, final DoorPosition pos) {
-        return _doors.get(pos);
+    /**
+     * @return the offset of the door along its wall, only meaningful if hasDoor(pos)
+     */
+    public int getDoor(final DoorPosition pos) {
+        return (this.doorOffsets >>> (8 * pos.ordinal())) & 0xff;
     }
 
-    public Integer getDoor(final DoorPosition pos) {
-        return this.getDoor(this.doors, pos);
+    public void setDoor(final DoorPosition pos, final int offset) {
+        this.doorMask |= doorBit(pos);
+        this.doorOffsets = (this.doorOffsets & ~(0xff << (8 * pos.ordinal()))) | ((offset & 0xff) << (8 * pos.ordinal()));
     }
 
-    public void setDoor(final DoorPosition pos, final Integer offset) {
-        doors.put(pos, offset);
+    public int getWidth() {
+        return this.pixelWidth;
     }
 
-    public byte[][] getBitmap() {
-        return this.bitmap;
+    public int getHeight() {
+        return this.pixelHeight;
     }
 
-    private void applyWallInBitmap() {
+    /**
+     * @return the position of tile (x, y) in getTiles()
+     */
+    public int index(final int x, final int y) {
+        return y * this.pixelWidth + x;
+    }
 
-        //Draw the wall
-        for (int x=0; x<this.tilesPerDistance; x++) {
-            for (int y=0; y<this.tilesPerDistance; y++) {
+    public boolean isInside(final int x, final int y) {
+        return x >= 0 && y >= 0 && x < this.pixelWidth && y < this.pixelHeight;
+    }
 
-                //Is any of my neighbours a floor tile? If so, I am a wall
-                if (this.bitmap[y][x] == TileTypes.TILE_FLOOR) {
-                    continue;
-                }
+    public byte getTile(final int x, final int y) {
+        return this.tiles[y * this.pixelWidth + x];
+    }
 
-                int l = this.tilesPerDistance-1;
-                if ((y>0 && x>0 && this.bitmap[y-1][x-1] == TileTypes.TILE_FLOOR)
-                ||  (y>0 && 	   this.bitmap[y-1][x]   == TileTypes.TILE_FLOOR)
-                ||  (y>0 && x<l && this.bitmap[y-1][x+1] == TileTypes.TILE_FLOOR)
-                ||  (       x>0 && this.bitmap[y][x-1]   == TileTypes.TILE_FLOOR)
-                ||  (       x<l && this.bitmap[y][x+1]   == TileTypes.TILE_FLOOR)
-                ||  (y<l && x>0 && this.bitmap[y+1][x-1] == TileTypes.TILE_FLOOR)
-                ||  (y<l && 	   this.bitmap[y+1][x]   == TileTypes.TILE_FLOOR)
-                ||  (y<l && x<l && this.bitmap[y+1][x+1] == TileTypes.TILE_FLOOR)) {
-                    this.bitmap[y][x] = TileTypes.TILE_WALL;
-                }
+    public void setTile(final int x, final int y, final byte tile) {
+        setTileAt(y * this.pixelWidth + x, tile);
+    }
+
+    private void setTileAt(final int i, final byte tile) {
+        if (this.shape != null) {
+            //Other rooms share these tiles, take a copy of our own first
+            this.tiles = this.tiles.clone();
+            this.floor = new TileMask(this.floor);
+            this.wall = new TileMask(this.wall);
+            this.door = new TileMask(this.door);
+            this.shape.release();
+            this.shape = null;
+        }
+        this.tiles[i] = tile;
+        this.floor.clear(i);
+        this.wall.clear(i);
+        this.door.clear(i);
+        if (tile == TileTypes.TILE_FLOOR) {
+            this.floor.set(i);
+        } else if (tile == TileTypes.TILE_WALL) {
+            this.wall.set(i);
+        } else if (tile == TileTypes.TILE_DOOR) {
+            this.door.set(i);
+        }
+    }
+
+    // single tiles are quicker to read from the tiles than from the masks, see RoomBenchmark in the tools module
+    public boolean isFloor(final int x, final int y) {
+        return this.tiles[y * this.pixelWidth + x] == TileTypes.TILE_FLOOR;
+    }
+
+    public boolean isDoor(final int x, final int y) {
+        return this.tiles[y * this.pixelWidth + x] == TileTypes.TILE_DOOR;
+    }
+
+    TileMask getFloorMask() {
+        return this.floor;
+    }
+
+    public int getFloorCount() {
+        return this.floor.count();
+    }
+
+    public int getWallCount() {
+        return this.wall.count();
+    }
+
+    public int getDoorCount() {
+        return this.door.count();
+    }
+
+    /**
+     * @return the tiles in row-major order, not a copy
+     */
+    public byte[] getTiles() {
+        return this.tiles;
+    }
+
+    /**
+     * Rough size of this room on the heap, in bytes: the tiles and masks
+     * plus a guess for the object headers. Interned tiles are counted by
+     * the registry instead, once for all the rooms sharing them.
+     */
+    public int getMemoryEstimate() {
+        if (this.shape != null) {
+            return 160;
+        }
+        return this.tiles.length + 3 * 8 * this.floor.words.length + 160;
+    }
+
+    /**
+     * Share the tiles and masks with every other room interned with the same
+     * tiles. Call once the room is finished, setTile() copies them back.
+     */
+    void intern(final ShapeRegistry registry) {
+        final ShapeRegistry.Shape found = registry.intern(this.getContentHash(), this.tiles, this.floor, this.wall, this.door);
+        if (found != null) {
+            this.tiles = found.tiles;
+            this.floor = found.floor;
+            this.wall = found.wall;
+            this.door = found.door;
+            this.shape = found;
+        }
+    }
+
+    /**
+     * The room is being dropped, stop counting it as using its shape. The
+     * room must not be interned again.
+     */
+    void releaseShape() {
+        if (this.shape != null) {
+            this.shape.release();
+        }
+    }
+
+    /**
+     * @return the id of the shape this room was interned as, 0 if it was not
+     */
+    public int getShapeId() {
+        return this.shape != null ? this.shape.id : 0;
+    }
+
+    /**
+     * FNV-1a hash of the tiles, used by clients to check a locally generated
+     * room against the server's.
+     */
+    public int getContentHash() {
+        if (this.shape != null) {
+            return this.shape.hash;
+        }
+        int hash = 0x811c9dc5;
+        for (final byte tile : this.tiles) {
+            hash ^= tile;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private void applyWallInBitmap() {
+        //Every tile next to a floor tile that is not floor itself is a wall
+        final long[] walls = this.floor.dilate();
+        for (int k=0; k<walls.length; k++) {
+            long bits = walls[k] & ~this.floor.words[k];
+            while (bits != 0) {
+                setTileAt((k << 6) + Long.numberOfTrailingZeros(bits), TileTypes.TILE_WALL);
+                bits &= bits - 1;
             }
         }
     }
 
-    private void connectDoors(final Map<DoorPosition, Integer> _doors) {
+    /**
+     * Paint a corridor or room joining the doors in the mask, a subset of the
+     * doors of this room.
+     */
+    private void connectDoors(final int _doors) {
         //Create a corridor
         //First, how wide should it be?
-        final Integer corridorBreadth = Math.max(5, (int) Math.round(RandomUtils.getRandom()*7));
+        final int corridorBreadth = Math.max(5, (int) Math.round(this.random.nextDouble()*7));
 
-        if ((this.hasDoor(_doors, DoorPosition.N) || this.hasDoor(_doors, DoorPosition.S))
-         && (this.hasDoor(_doors, DoorPosition.W) || this.hasDoor(_doors, DoorPosition.E))) {
+        if ((hasDoor(_doors, DoorPosition.N) || hasDoor(_doors, DoorPosition.S))
+         && (hasDoor(_doors, DoorPosition.W) || hasDoor(_doors, DoorPosition.E))) {
             //Knee corridor
 
             //Simply enclose the room in an arbitrarily sized rectangle
             final Rectangle dim = new Rectangle(
-                this.hasDoor(_doors, DoorPosition.N)? this.getDoor(_doors, DoorPosition.N) : this.getDoor(_doors, DoorPosition.S),
-                this.hasDoor(_doors, DoorPosition.E)? this.getDoor(_doors, DoorPosition.E) : this.getDoor(_doors, DoorPosition.W),
+                hasDoor(_doors, DoorPosition.N)? this.getDoor(DoorPosition.N) : this.getDoor(DoorPosition.S),
+                hasDoor(_doors, DoorPosition.E)? this.getDoor(DoorPosition.E) : this.getDoor(DoorPosition.W),
                 0,
                 0
             );
 
-            if (this.hasDoor(_doors, DoorPosition.E)) {
+            if (hasDoor(_doors, DoorPosition.E)) {
                 dim.width = this.pixelWidth - dim.x;
             } else {
                 dim.width = dim.x;
             }
 
-            if (this.hasDoor(_doors, DoorPosition.S)) {
+            if (hasDoor(_doors, DoorPosition.S)) {
                 dim.height = this.pixelWidth - dim.y;
             } else {
                 dim.height = dim.y;
@@ -151,13 +306,13 @@ public class RoomModel {
             dim.height = Math.min(this.pixelHeight, dim.height);
 
             //Nudge
-            if (this.hasDoor(_doors, DoorPosition.E)) {
+            if (hasDoor(_doors, DoorPosition.E)) {
                 dim.x = Math.max(0, Math.min(this.pixelWidth-dim.width, dim.x));
             } else {
                 dim.x = 0;
             }
 
-            if (this.hasDoor(_doors, DoorPosition.S)) {
+            if (hasDoor(_doors, DoorPosition.S)) {
                 dim.y = Math.max(0, Math.min(this.pixelHeight-dim.height, dim.y));
             } else {
                 dim.y = 0;
@@ -170,15 +325,15 @@ public class RoomModel {
                     ||  y == dim.y || y == dim.y+dim.height-1) {
                         //room.bitmap[y][x] = defs.tiles.types.wall;
                     } else {
-                        this.bitmap[y][x] = TileTypes.TILE_FLOOR;
+                        this.setTile(x, y, TileTypes.TILE_FLOOR);
                     }
                 }
             }
-        } else if (this.hasDoor(_doors, DoorPosition.N) && this.hasDoor(_doors, DoorPosition.S)) {
+        } else if (hasDoor(_doors, DoorPosition.N) && hasDoor(_doors, DoorPosition.S)) {
             //Vertical corridor
 
-            int nX = Math.max(1, Math.min(this.pixelWidth-corridorBreadth-1, Math.round(this.getDoor(_doors, DoorPosition.N) - corridorBreadth/2)));
-            int sX = Math.max(1, Math.min(this.pixelWidth-corridorBreadth-1, Math.round(this.getDoor(_doors, DoorPosition.S) - corridorBreadth/2)));
+            int nX = Math.max(1, Math.min(this.pixelWidth-corridorBreadth-1, Math.round(this.getDoor(DoorPosition.N) - corridorBreadth/2)));
+            int sX = Math.max(1, Math.min(this.pixelWidth-corridorBreadth-1, Math.round(this.getDoor(DoorPosition.S) - corridorBreadth/2)));
 
             if (nX == sX) {
                 //Straight corridor
@@ -187,7 +342,7 @@ public class RoomModel {
                         if (y == 0 || y == this.tilesPerDistance-1) {
                             //room.bitmap[y][x] = defs.tiles.types.wall;
                         } else {
-                            this.bitmap[y][x] = TileTypes.TILE_FLOOR;
+                            this.setTile(x, y, TileTypes.TILE_FLOOR);
                         }
                     }
                 }
@@ -207,7 +362,7 @@ public class RoomModel {
                         if (y == 0 || y == this.tilesPerDistance-1) {
                             //room.bitmap[y][_x] = defs.tiles.types.wall;
                         } else {
-                            this.bitmap[y][_x] = TileTypes.TILE_FLOOR;
+                            this.setTile(_x, y, TileTypes.TILE_FLOOR);
                         }
                     }
                 }
@@ -225,17 +380,17 @@ public class RoomModel {
 
                 for (int x=startX; x<endX; x++) {
                     for (int y=kneeStart; y<kneeStart+corridorBreadth; y++) {
-                        this.bitmap[y][x] = TileTypes.TILE_FLOOR;
+                        this.setTile(x, y, TileTypes.TILE_FLOOR);
                     }
                 }
             }
 
 
-        } else if (this.hasDoor(_doors, DoorPosition.E) && this.hasDoor(_doors, DoorPosition.W)) {
+        } else if (hasDoor(_doors, DoorPosition.E) && hasDoor(_doors, DoorPosition.W)) {
             //Horizontal corridor
 
-            int wY = Math.max(1, Math.min(this.pixelHeight-corridorBreadth-1, Math.round(this.getDoor(_doors, DoorPosition.W) - corridorBreadth/2)));
-            int eY = Math.max(1, Math.min(this.pixelHeight-corridorBreadth-1, Math.round(this.getDoor(_doors, DoorPosition.E) - corridorBreadth/2)));
+            int wY = Math.max(1, Math.min(this.pixelHeight-corridorBreadth-1, Math.round(this.getDoor(DoorPosition.W) - corridorBreadth/2)));
+            int eY = Math.max(1, Math.min(this.pixelHeight-corridorBreadth-1, Math.round(this.getDoor(DoorPosition.E) - corridorBreadth/2)));
 
             if (wY == eY) {
                 //Straight corridor
@@ -244,7 +399,7 @@ public class RoomModel {
                         if (x == 0 || x == this.tilesPerDistance-1) {
                             //room.bitmap[y][x] = defs.tiles.types.wall;
                         } else {
-                            this.bitmap[y][x] = TileTypes.TILE_FLOOR;
+                            this.setTile(x, y, TileTypes.TILE_FLOOR);
                         }
                     }
                 }
@@ -264,7 +419,7 @@ public class RoomModel {
                         if (x == 0 || x == this.tilesPerDistance-1) {
                             //room.bitmap[_y][x] = defs.tiles.types.wall;
                         } else {
-                            this.bitmap[_y][x] = TileTypes.TILE_FLOOR;
+                            this.setTile(x, _y, TileTypes.TILE_FLOOR);
                         }
                     }
                 }
@@ -283,7 +438,7 @@ public class RoomModel {
 
                 for (int y=startY; y<endY; y++) {
                     for (int x=kneeStart; x<kneeStart+corridorBreadth; x++) {
-                        this.bitmap[y][x] = TileTypes.TILE_FLOOR;
+                        this.setTile(x, y, TileTypes.TILE_FLOOR);
                     }
                 }
             }
@@ -310,31 +465,31 @@ public class RoomModel {
                 Full room + cut-outs
         */
 
-        final Map.Entry<DoorPosition, Integer>[] availableDoors = (Map.Entry<DoorPosition, Integer>[]) this.doors.entrySet().toArray(new Map.Entry[this.doors.size()]);
-
-        switch (availableDoors.length) {
+        switch (Integer.bitCount(this.doorMask)) {
             case 1:
                 final Rectangle dim = new Rectangle(
                     0,
                     0,
-                    Math.round(MIN_WALL_LENGTH + RandomUtils.getRandom() * (this.tilesPerDistance - MIN_WALL_LENGTH)),
-                    Math.round(MIN_WALL_LENGTH + RandomUtils.getRandom() * (this.tilesPerDistance - MIN_WALL_LENGTH))
+                    Math.round(MIN_WALL_LENGTH + this.random.nextDouble() * (this.tilesPerDistance - MIN_WALL_LENGTH)),
+                    Math.round(MIN_WALL_LENGTH + this.random.nextDouble() * (this.tilesPerDistance - MIN_WALL_LENGTH))
                 );
-                switch (availableDoors[0].getKey()) {
+                final DoorPosition onlyDoor = DOOR_POSITIONS[Integer.numberOfTrailingZeros(this.doorMask)];
+                final int onlyOffset = this.getDoor(onlyDoor);
+                switch (onlyDoor) {
                     case S:
                         dim.y = this.pixelHeight - dim.height;
-                        dim.x = Math.max(0, Math.min(this.pixelWidth-dim.width, Math.round(availableDoors[0].getValue() - dim.width/2)));
+                        dim.x = Math.max(0, Math.min(this.pixelWidth-dim.width, Math.round(onlyOffset - dim.width/2)));
                         break;
                     case N:
                         dim.y = 0;
-                        dim.x = Math.max(0, Math.min(this.pixelWidth-dim.width, Math.round(availableDoors[0].getValue() - dim.width/2)));
+                        dim.x = Math.max(0, Math.min(this.pixelWidth-dim.width, Math.round(onlyOffset - dim.width/2)));
                         break;
                     case W:
-                        dim.y = Math.max(0, Math.min(this.pixelHeight - dim.height, Math.round(availableDoors[0].getValue() - dim.height / 2)));
+                        dim.y = Math.max(0, Math.min(this.pixelHeight - dim.height, Math.round(onlyOffset - dim.height / 2)));
                         dim.x = 0;
                         break;
                     case E:
-                        dim.y = Math.max(0, Math.min(this.pixelHeight-dim.height, Math.round(availableDoors[0].getValue() - dim.height/2)));
+                        dim.y = Math.max(0, Math.min(this.pixelHeight-dim.height, Math.round(onlyOffset - dim.height/2)));
                         dim.x = this.pixelWidth - dim.width;
                         break;
                 }
@@ -343,9 +498,9 @@ public class RoomModel {
                     for (int x=(int)dim.x; x<dim.x+dim.width; x++) {
                         if (x == dim.x || x == dim.x+dim.width-1
                         ||  y == dim.y || y == dim.y+dim.height-1) {
-                            this.bitmap[y][x] = TileTypes.TILE_WALL;
+                            this.setTile(x, y, TileTypes.TILE_WALL);
                         } else {
-                            this.bitmap[y][x] = TileTypes.TILE_FLOOR;
+                            this.setTile(x, y, TileTypes.TILE_FLOOR);
                         }
                     }
                 }
@@ -353,87 +508,16 @@ public class RoomModel {
 
 
             case 2:
-                this.connectDoors(this.doors);
+                this.connectDoors(this.doorMask);
                 this.applyWallInBitmap();
                 break;
 
             case 3:
-                Map<DoorPosition, Integer> _doors;
-                if (this.hasDoor(DoorPosition.N)) {
-                    if (this.hasDoor(DoorPosition.E)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.N, doors.get(DoorPosition.N));
-                        _doors.put(DoorPosition.E, doors.get(DoorPosition.E));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.S)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.N, doors.get(DoorPosition.N));
-                        _doors.put(DoorPosition.S, doors.get(DoorPosition.S));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.W)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.N, doors.get(DoorPosition.N));
-                        _doors.put(DoorPosition.W, doors.get(DoorPosition.W));
-                        this.connectDoors(_doors);
-                    }
-                } else if (this.hasDoor(DoorPosition.S)) {
-                    if (this.hasDoor(DoorPosition.E)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.S, doors.get(DoorPosition.S));
-                        _doors.put(DoorPosition.E, doors.get(DoorPosition.E));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.N)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.S, doors.get(DoorPosition.S));
-                        _doors.put(DoorPosition.N, doors.get(DoorPosition.N));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.W)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.S, doors.get(DoorPosition.S));
-                        _doors.put(DoorPosition.W, doors.get(DoorPosition.W));
-                        this.connectDoors(_doors);
-                    }
-                } else if (this.hasDoor(DoorPosition.W)) {
-                    if (this.hasDoor(DoorPosition.E)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.W, doors.get(DoorPosition.W));
-                        _doors.put(DoorPosition.E, doors.get(DoorPosition.E));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.N)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.W, doors.get(DoorPosition.W));
-                        _doors.put(DoorPosition.N, doors.get(DoorPosition.N));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.S)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.W, doors.get(DoorPosition.W));
-                        _doors.put(DoorPosition.S, doors.get(DoorPosition.S));
-                        this.connectDoors(_doors);
-                    }
-                } else if (this.hasDoor(DoorPosition.E)) {
-                    if (this.hasDoor(DoorPosition.W)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.E, doors.get(DoorPosition.E));
-                        _doors.put(DoorPosition.W, doors.get(DoorPosition.W));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.N)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.E, doors.get(DoorPosition.E));
-                        _doors.put(DoorPosition.N, doors.get(DoorPosition.N));
-                        this.connectDoors(_doors);
-                    }
-                    if (this.hasDoor(DoorPosition.S)) {
-                        _doors = new HashMap<DoorPosition, Integer>();
-                        _doors.put(DoorPosition.E, doors.get(DoorPosition.E));
-                        _doors.put(DoorPosition.S, doors.get(DoorPosition.S));
-                        this.connectDoors(_doors);
+                //Join the N door, or the S door if there is no N door, with each of the other two
+                final DoorPosition first = this.hasDoor(DoorPosition.N) ? DoorPosition.N : DoorPosition.S;
+                for (final DoorPosition other : PAIR_ORDER) {
+                    if (other != first && this.hasDoor(other)) {
+                        this.connectDoors(doorBit(first) | doorBit(other));
                     }
                 }
                 this.applyWallInBitmap();
@@ -445,9 +529,9 @@ public class RoomModel {
                     for (int x=0; x<this.pixelWidth; x++) {
                         if (x == 0 || x == this.pixelWidth-1
                         ||  y == 0 || y == this.pixelHeight-1) {
-                            this.bitmap[y][x] = TileTypes.TILE_WALL;
+                            this.setTile(x, y, TileTypes.TILE_WALL);
                         } else {
-                            this.bitmap[y][x] = TileTypes.TILE_FLOOR;
+                            this.setTile(x, y, TileTypes.TILE_FLOOR);
                         }
                     }
                 }
@@ -456,56 +540,90 @@ public class RoomModel {
 
         //Apply doors to local bitmap
         if (this.hasDoor(DoorPosition.S)) {
-            this.bitmap[this.pixelHeight-1][this.getDoor(DoorPosition.S)] = TileTypes.TILE_DOOR;
+            this.setTile(this.getDoor(DoorPosition.S), this.pixelHeight-1, TileTypes.TILE_DOOR);
         }
 
         if (this.hasDoor(DoorPosition.N)) {
-            this.bitmap[0][this.getDoor(DoorPosition.N)] = TileTypes.TILE_DOOR;
+            this.setTile(this.getDoor(DoorPosition.N), 0, TileTypes.TILE_DOOR);
         }
 
         if (this.hasDoor(DoorPosition.W)) {
-            this.bitmap[this.getDoor(DoorPosition.W)][0] = TileTypes.TILE_DOOR;
+            this.setTile(0, this.getDoor(DoorPosition.W), TileTypes.TILE_DOOR);
         }
 
         if (this.hasDoor(DoorPosition.E)) {
-            this.bitmap[this.getDoor(DoorPosition.E)][this.pixelWidth-1] = TileTypes.TILE_DOOR;
+            this.setTile(this.pixelWidth-1, this.getDoor(DoorPosition.E), TileTypes.TILE_DOOR);
         }
 
     }
 
-    public static void publishRoomBitmap(byte[][] map, DatagramSocket serverSocket, InetAddress IPAddress, int port) throws IOException, BufferOverflowException {
+    /**
+     * Publish a room bitmap. Clients that announced CAPABILITY_PACKED_ROOMS get
+     * the compact SR_PACKET_ROOM_MAP_PACKED, older clients one byte per tile.
+     */
+    public void publishRoomBitmap(boolean packed, DatagramChannel serverChannel, InetAddress IPAddress, int port) throws IOException, BufferOverflowException {
         GamePacketProvider packetProvider = GameServer.getInstance().getPacketProvider();
         ByteBuffer bb = packetProvider.getSendBuffer();
 
-        bb.put(GameServer.SR_PACKET_ROOM_MAP);
-        bb.put((byte)map.length);
-        bb.put((byte)map[0].length);
-
-        int x, y;
-        for(x = 0; x < map.length; x++) {
-            byte[] row = map[x];
-            for(y = 0; y < row.length; y++) {
-                bb.put(row[y]);
-            }
+        if(packed) {
+            bb.put(GameServer.SR_PACKET_ROOM_MAP_PACKED);
+            RoomCodec.encode(this, bb);
+        } else {
+            bb.put(GameServer.SR_PACKET_ROOM_MAP);
+            bb.put((byte)this.pixelHeight);
+            bb.put((byte)this.pixelWidth);
+            bb.put(this.tiles);
         }
-        packetProvider.send(serverSocket, IPAddress, port);
+        packetProvider.send(serverChannel, IPAddress, port);
     }
 
-    public static byte[][] consumePublishedRoomBitmap(ByteBuffer bb) {
-        byte sizeX = bb.get();
-        byte sizeY = bb.get();
+    /**
+     * Tell a client that generates the cave itself which room to show. It
+     * answers with CL_PACKET_ROOM_REQUEST if its copy does not match the hash.
+     */
+    public void publishRoomReference(DatagramChannel serverChannel, InetAddress IPAddress, int port) throws IOException {
+        GamePacketProvider packetProvider = GameServer.getInstance().getPacketProvider();
+        ByteBuffer bb = packetProvider.getSendBuffer();
 
-        byte[][] newMap = new byte[sizeX][];
-        int x, y;
+        bb.put(GameServer.SR_PACKET_ROOM_REFERENCE);
+        bb.putShort((short)this.posX);
+        bb.putShort((short)this.posY);
+        bb.putInt(this.getContentHash());
 
-        for(x = 0; x < sizeX; x++) {
-            byte[] row = new byte[sizeY];
-            newMap[x] = row;
-            for(y = 0; y < sizeY; y++) {
-                row[y] = bb.get();
-            }
+        packetProvider.send(serverChannel, IPAddress, port);
+    }
+
+    /**
+     * Publish the shape of the room by id, for clients that announced
+     * CAPABILITY_ROOM_SHAPES. Unless the client already has it the tiles
+     * follow the id, packed like SR_PACKET_ROOM_MAP_PACKED.
+     */
+    public void publishRoomShape(boolean known, DatagramChannel serverChannel, InetAddress IPAddress, int port) throws IOException, BufferOverflowException {
+        GamePacketProvider packetProvider = GameServer.getInstance().getPacketProvider();
+        ByteBuffer bb = packetProvider.getSendBuffer();
+
+        if(known) {
+            bb.put(GameServer.SR_PACKET_SHAPE_REFERENCE);
+            bb.putInt(this.getShapeId());
+        } else {
+            bb.put(GameServer.SR_PACKET_ROOM_SHAPE);
+            bb.putInt(this.getShapeId());
+            RoomCodec.encode(this, bb);
         }
+        packetProvider.send(serverChannel, IPAddress, port);
+    }
+
+    public static RoomModel consumePublishedRoomBitmap(ByteBuffer bb) {
+        int rows = bb.get() & 0xff;
+        int columns = bb.get() & 0xff;
+
+        byte[] tiles = new byte[rows * columns];
+        bb.get(tiles);
+
+        return new RoomModel(columns, rows, tiles);
+    }
 
-        return newMap;
+    public static RoomModel consumePackedRoomBitmap(ByteBuffer bb) {
+        return RoomCodec.decode(bb);
     }
 }
@@ -0,0 +1,111 @@
+package com.holidaystudios.kngt.model;
+
+import com.holidaystudios.kngt.tools.FastRandom;
+
+import java.util.List;
+
+/**
+ * Which knight stands on each tile of a room, by knight id, 0 where nobody
+ * does. The occupied tiles are also kept as a mask so the knights of a room
+ * and its free floor are found without looking at every tile.
+ */
+final class RoomOccupancy {
+    private final int[] knightAt; // row-major like the tiles of RoomModel
+    private final TileMask occupied;
+    private int count = 0;
+
+    // while awake the room is in the awake list of GameModel, see GameModel.wakeRoom()
+    final int key;
+    boolean awake = false;
+    long awakeUntil = -1; // on the clock of the knight store
+
+    RoomOccupancy(final int key, final int width, final int height) {
+        this.key = key;
+        this.knightAt = new int[width * height];
+        this.occupied = new TileMask(width, height);
+    }
+
+    int get(final int i) {
+        return knightAt[i];
+    }
+
+    boolean isFree(final int i) {
+        return knightAt[i] == 0;
+    }
+
+    void put(final int i, final int knightID) {
+        if (knightAt[i] == 0) {
+            count++;
+        }
+        knightAt[i] = knightID;
+        occupied.set(i);
+    }
+
+    void clear(final int i) {
+        if (knightAt[i] != 0) {
+            count--;
+        }
+        knightAt[i] = 0;
+        occupied.clear(i);
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Add the knights of the room to a list, in tile order.
+     */
+    void collect(final KnightStore store, final List<KnightModel> into) {
+        final long[] words = occupied.words;
+        for (int k=0; k<words.length; k++) {
+            long bits = words[k];
+            while (bits != 0) {
+                into.add(store.get(knightAt[(k << 6) + Long.numberOfTrailingZeros(bits)]));
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    /**
+     * @param occupancy the knights of the room, null if there are none
+     * @return a floor tile nobody stands on, each equally likely, or -1 if
+     *         there is none
+     */
+    static int pickFreeFloor(final TileMask floor, final RoomOccupancy occupancy, final FastRandom random) {
+        final long[] free = floor.words.clone();
+        if (occupancy != null) {
+            for (int k=0; k<free.length; k++) {
+                free[k] &= ~occupancy.occupied.words[k];
+            }
+        }
+
+        int count = 0;
+        for (final long word : free) {
+            count += Long.bitCount(word);
+        }
+        if (count == 0) {
+            return -1;
+        }
+
+        //Skip whole words, then bits, until the chosen one
+        int pick = random.nextInt(count);
+        for (int k=0; k<free.length; k++) {
+            final int inWord = Long.bitCount(free[k]);
+            if (pick >= inWord) {
+                pick -= inWord;
+                continue;
+            }
+            long bits = free[k];
+            for (; pick > 0; pick--) {
+                bits &= bits - 1;
+            }
+            return (k << 6) + Long.numberOfTrailingZeros(bits);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,140 @@
+package com.holidaystudios.kngt.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finished room bitmaps, each kept once. Rooms with identical tiles share
+ * one read only tile array and one set of masks, and are known by the id of
+ * that shape, so a client that has seen a shape is never sent it again.
+ *
+ * Ids are handed out in the order shapes are first seen, they are only
+ * meaningful to the registry that made them and never reused. Once it holds
+ * maxShapes shapes new bitmaps are no longer interned and rooms keep their
+ * own tiles.
+ *
+ * Shapes count the rooms using them. A lazy cave releases the rooms it drops,
+ * and a shape no room uses any more is forgotten, so the registry only holds
+ * the shapes of rooms in memory and its size counts against the room cache.
+ */
+public class ShapeRegistry {
+    public final static int DEFAULT_MAX_SHAPES = 1 << 16;
+
+    static final class Shape {
+        final ShapeRegistry registry;
+        final int id, hash;
+        final byte[] tiles;
+        final TileMask floor, wall, door;
+        Shape next; // with the same hash
+        int rooms = 0; // interned and not released
+
+        Shape(final ShapeRegistry registry, final int id, final int hash, final byte[] tiles, final TileMask floor, final TileMask wall, final TileMask door) {
+            this.registry = registry;
+            this.id = id;
+            this.hash = hash;
+            this.tiles = tiles;
+            this.floor = floor;
+            this.wall = wall;
+            this.door = door;
+        }
+
+        /**
+         * Rough size on the heap in bytes, the tiles and masks plus a guess
+         * for the object headers.
+         */
+        int getMemoryEstimate() {
+            return tiles.length + 3 * 8 * floor.words.length + 160;
+        }
+
+        /**
+         * One room using the shape less.
+         */
+        void release() {
+            registry.release(this);
+        }
+    }
+
+    private final int maxShapes;
+    private final Map<Integer, Shape> byHash = new HashMap<Integer, Shape>();
+    private int shapes = 0, lastId = 0;
+    private long memory = 0;
+    private long lookups = 0, shared = 0;
+
+    public ShapeRegistry() {
+        this(DEFAULT_MAX_SHAPES);
+    }
+
+    public ShapeRegistry(final int maxShapes) {
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * @return the shape with the given tiles, new if none matched, or null if
+     *         there was none and the registry is full. Unless null the room
+     *         is counted as using the shape until Shape.release().
+     */
+    synchronized Shape intern(final int hash, final byte[] tiles, final TileMask floor, final TileMask wall, final TileMask door) {
+        lookups++;
+        final Shape first = byHash.get(hash);
+        for (Shape shape = first; shape != null; shape = shape.next) {
+            if (Arrays.equals(shape.tiles, tiles)) {
+                shared++;
+                shape.rooms++;
+                return shape;
+            }
+        }
+        if (shapes == maxShapes) {
+            return null;
+        }
+
+        final Shape shape = new Shape(this, ++lastId, hash, tiles, floor, wall, door);
+        shape.next = first;
+        shape.rooms = 1;
+        byHash.put(hash, shape);
+        shapes++;
+        memory += shape.getMemoryEstimate();
+        return shape;
+    }
+
+    private synchronized void release(final Shape shape) {
+        if (--shape.rooms > 0) {
+            return;
+        }
+
+        //Unlink it from the shapes with the same hash
+        final Shape first = byHash.get(shape.hash);
+        if (first == shape) {
+            if (shape.next != null) {
+                byHash.put(shape.hash, shape.next);
+            } else {
+                byHash.remove(shape.hash);
+            }
+        } else {
+            Shape before = first;
+            while (before.next != shape) {
+                before = before.next;
+            }
+            before.next = shape.next;
+        }
+        shape.next = null;
+        shapes--;
+        memory -= shape.getMemoryEstimate();
+    }
+
+    public synchronized int getShapeCount() {
+        return shapes;
+    }
+
+    /**
+     * @return the estimated memory held by the shapes, in bytes
+     */
+    public synchronized long getMemoryEstimate() {
+        return memory;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return shapes + " shapes (" + (memory / 1024) + " kB) for " + lookups + " rooms, " + shared + " shared";
+    }
+}
@@ -0,0 +1,110 @@
+package com.holidaystudios.kngt.model;
+
+/**
+ * One bit per tile of a room, in the same row-major order as the tiles of
+ * RoomModel. A 15x15 room fits in four longs.
+ */
+final class TileMask {
+    final int width, height, size;
+    final long[] words;
+
+    TileMask(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        this.size = width * height;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    TileMask(final TileMask other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.size = other.size;
+        this.words = other.words.clone();
+    }
+
+    boolean get(final int i) {
+        return (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    void set(final int i) {
+        words[i >>> 6] |= 1L << i;
+    }
+
+    void clear(final int i) {
+        words[i >>> 6] &= ~(1L << i);
+    }
+
+    int count() {
+        int count = 0;
+        for (final long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * dst = src shifted n bits towards higher tile indices
+     */
+    private static void shiftUp(final long[] src, final int n, final long[] dst) {
+        final int wordShift = n >>> 6, bitShift = n & 63;
+        for (int k=dst.length-1; k>=0; k--) {
+            final int from = k - wordShift;
+            long word = from >= 0 ? src[from] << bitShift : 0;
+            if (bitShift != 0 && from > 0) {
+                word |= src[from - 1] >>> (64 - bitShift);
+            }
+            dst[k] = word;
+        }
+    }
+
+    /**
+     * dst = src shifted n bits towards lower tile indices
+     */
+    private static void shiftDown(final long[] src, final int n, final long[] dst) {
+        final int wordShift = n >>> 6, bitShift = n & 63;
+        for (int k=0; k<dst.length; k++) {
+            final int from = k + wordShift;
+            long word = from < src.length ? src[from] >>> bitShift : 0;
+            if (bitShift != 0 && from + 1 < src.length) {
+                word |= src[from + 1] << (64 - bitShift);
+            }
+            dst[k] = word;
+        }
+    }
+
+    /**
+     * @return the tiles that are in this mask or touch one of its tiles,
+     *         diagonals included
+     */
+    long[] dilate() {
+        final long[] firstColumn = new long[words.length];
+        final long[] lastColumn = new long[words.length];
+        for (int y=0; y<height; y++) {
+            firstColumn[(y * width) >>> 6] |= 1L << (y * width);
+            lastColumn[(y * width + width - 1) >>> 6] |= 1L << (y * width + width - 1);
+        }
+
+        //Spread sideways, dropping what wraps around to the next or previous row
+        final long[] left = new long[words.length];
+        final long[] right = new long[words.length];
+        shiftUp(words, 1, right);
+        shiftDown(words, 1, left);
+        final long[] row = new long[words.length];
+        for (int k=0; k<words.length; k++) {
+            row[k] = words[k] | (right[k] & ~firstColumn[k]) | (left[k] & ~lastColumn[k]);
+        }
+
+        //Then up and down
+        shiftUp(row, width, right);
+        shiftDown(row, width, left);
+        for (int k=0; k<words.length; k++) {
+            row[k] |= right[k] | left[k];
+        }
+
+        //Nothing past the last tile
+        if ((size & 63) != 0) {
+            row[words.length - 1] &= (1L << size) - 1;
+        }
+        return row;
+    }
+}
@@ -7,7 +7,9 @@
 package com.holidaystudios.kngt.networking;
 
 import com.badlogic.gdx.Gdx;
-import com.holidaystudios.kngt.model.KnightModel;
+import com.holidaystudios.kngt.model.CaveModel;
+import com.holidaystudios.kngt.model.KnightStore;
+import com.holidaystudios.kngt.model.KnightSnapshot;
 import com.holidaystudios.kngt.model.RoomModel;
 import com.holidaystudios.kngt.view.GameView;
 import com.holidaystudios.kngt.view.ViewListener;
@@ -22,7 +24,10 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
@@ -30,13 +35,26 @@ import java.util.Queue;
 public class GameClient extends Thread implements ViewListener {
     public final static int CLIENT_PORT = 9877;
     public final static int DEFAULT_NUMBER_OF_FREE_EVENTS = 50;
+    public final static int MAXIMUM_CACHED_SHAPES = 1024;
+    public final static int CLIENT_CAPABILITIES = GameServer.CAPABILITY_PACKED_ROOMS | GameServer.CAPABILITY_SEEDED_CAVE
+            | GameServer.CAPABILITY_ROOM_SHAPES;
 
     InetAddress serverAddress;
 
     Queue<ByteBuffer> freeBuffers = new PriorityQueue<ByteBuffer>(50);
     Queue<ByteBuffer> consumedBuffers = new PriorityQueue<ByteBuffer>(50);
     GameView view = new GameView();
-    Map<Integer, KnightView> knights = new HashMap<Integer, KnightView>();
+    KnightStore knightStore = new KnightStore(); // what we know of the knights, in the server's slots
+    KnightView[] knights = new KnightView[16]; // by knight store slot
+    KnightDeltaDecoder knightDecoder = new KnightDeltaDecoder();
+    List<KnightSnapshot> decodedKnights = new ArrayList<KnightSnapshot>();
+    CaveModel cave = null; // our own copy of the server's cave, if we could generate it
+    Map<Integer, RoomModel> shapes = new LinkedHashMap<Integer, RoomModel>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, RoomModel> eldest) {
+            return size() > MAXIMUM_CACHED_SHAPES;
+        }
+    };
 
     DatagramSocket socket;
 
@@ -64,6 +82,7 @@ public class GameClient extends Thread implements ViewListener {
             ByteBuffer bb = packetProvider.getSendBuffer();
 
             bb.put(GameServer.CL_PACKET_LOGIN_USER);
+            bb.put((byte)CLIENT_CAPABILITIES);
 
             packetProvider.send(socket, serverAddress, GameServer.SERVER_PORT);
         } catch(UnknownHostException e) {
@@ -88,6 +107,10 @@ public class GameClient extends Thread implements ViewListener {
                 socket.receive(recvPacket);
                 Gdx.app.log("kngt", "CLIENT waiting.");
 
+                // the datagram length is the frame boundary
+                bb.clear();
+                bb.limit(recvPacket.getLength());
+
                 while(bb != null) {
                     try {
                         consumedBuffers.add(bb);
@@ -122,18 +145,105 @@ public class GameClient extends Thread implements ViewListener {
         return view;
     }
 
-    private void parseKnightState(ByteBuffer bb) {
-        int knightId = bb.getInt();
-        KnightView kng;
-        if(knights.containsKey(Integer.valueOf(knightId))) {
-            kng = knights.get(Integer.valueOf(knightId));
-        } else {
-            kng = new KnightView(new KnightModel(knightId));
-            knights.put(Integer.valueOf(knightId), kng);
-            view.addToStage(kng);
+    private KnightView getKnightView(int knightId) {
+        int slot = KnightStore.indexOf(knightId);
+        if(knightStore.contains(knightId))
+            return knights[slot];
+
+        if(slot >= knights.length)
+            knights = Arrays.copyOf(knights, Math.max(slot + 1, knights.length * 2));
+        // whoever had the slot before is gone, even if we missed the removal
+        if(knights[slot] != null)
+            knights[slot].remove();
+
+        KnightView kng = new KnightView(knightStore.put(knightId));
+        knights[slot] = kng;
+        view.addToStage(kng);
+        return kng;
+    }
+
+    private void removeKnightView(int knightId) {
+        if(knightStore.remove(knightId)) {
+            int slot = KnightStore.indexOf(knightId);
+            knights[slot].remove();
+            knights[slot] = null;
+        }
+    }
+
+    private void parseKnightSnapshot(ByteBuffer bb) {
+        decodedKnights.clear();
+        knightDecoder.decode(bb, decodedKnights);
+        for(KnightSnapshot snapshot : decodedKnights) {
+            if(snapshot.isRemoved()) {
+                removeKnightView(snapshot.getKnightID());
+            } else {
+                snapshot.applyTo(getKnightView(snapshot.getKnightID()).model);
+            }
+        }
+
+        // knights we could not decode are listed, the server sends them in full next
+        try {
+            ByteBuffer ack = packetProvider.getSendBuffer();
+            ack.put(GameServer.CL_PACKET_SNAPSHOT_ACK);
+            ack.putShort((short)knightDecoder.getLastSequence());
+            ack.put((byte)knightDecoder.getMissing().size());
+            for(Integer knightID : knightDecoder.getMissing())
+                ack.putInt(knightID);
+            packetProvider.send(socket, serverAddress, GameServer.SERVER_PORT);
+        } catch(IOException e) {
+            Gdx.app.log("kngt", "CLIENT failed to acknowledge snapshot: " + e.getMessage());
+        }
+    }
+
+    private void parseRoomReference(ByteBuffer bb) {
+        final int roomX = bb.getShort() & 0xffff;
+        final int roomY = bb.getShort() & 0xffff;
+        final int hash = bb.getInt();
+
+        if(cave != null && roomX < cave.getRoomsX() && roomY < cave.getRoomsY()) {
+            RoomModel room = cave.getRoom(roomX, roomY);
+            if(room.getContentHash() == hash) {
+                view.renderRoom(room);
+                return;
+            }
+            Gdx.app.log("kngt", "CLIENT generated room " + roomX + "," + roomY + " does not match the server's.");
+        }
+
+        // fall back to having the server send the bitmap
+        try {
+            ByteBuffer request = packetProvider.getSendBuffer();
+            request.put(GameServer.CL_PACKET_ROOM_REQUEST);
+            request.putShort((short)roomX);
+            request.putShort((short)roomY);
+            packetProvider.send(socket, serverAddress, GameServer.SERVER_PORT);
+        } catch(IOException e) {
+            Gdx.app.log("kngt", "CLIENT failed to request room: " + e.getMessage());
+        }
+    }
+
+    private void parseRoomShape(ByteBuffer bb) {
+        final int shapeId = bb.getInt();
+        RoomModel room = RoomModel.consumePackedRoomBitmap(bb);
+        shapes.put(Integer.valueOf(shapeId), room);
+        view.renderRoom(room);
+    }
+
+    private void parseShapeReference(ByteBuffer bb) {
+        final int shapeId = bb.getInt();
+        RoomModel room = shapes.get(Integer.valueOf(shapeId));
+        if(room != null) {
+            view.renderRoom(room);
+            return;
         }
 
-        kng.model.consumePublishedKnight(bb);
+        try {
+            ByteBuffer request = packetProvider.getSendBuffer();
+            request.put(GameServer.CL_PACKET_SHAPE_REQUEST);
+            request.putInt(shapeId);
+            packetProvider.send(socket, serverAddress, GameServer.SERVER_PORT);
+        } catch(IOException e) {
+            Gdx.app.log("kngt", "CLIENT failed to request shape: " + e.getMessage());
+        }
     }
 
     private void parsePacket(ByteBuffer bb) {
@@ -141,14 +251,45 @@ public class GameClient extends Thread implements ViewListener {
             case GameServer.SR_PACKET_ROOM_MAP:
                 view.renderRoom(RoomModel.consumePublishedRoomBitmap(bb));
                 break;
-            case GameServer.SR_PACKET_KNIGHT_STATE:
-                parseKnightState(bb);
+            case GameServer.SR_PACKET_ROOM_MAP_PACKED:
+                view.renderRoom(RoomModel.consumePackedRoomBitmap(bb));
+                break;
+            case GameServer.SR_PACKET_CAVE_SEED:
+                cave = CaveModel.consumePublishedCaveSeed(bb);
+                break;
+            case GameServer.SR_PACKET_ROOM_REFERENCE:
+                parseRoomReference(bb);
+                break;
+            case GameServer.SR_PACKET_ROOM_SHAPE:
+                parseRoomShape(bb);
+                break;
+            case GameServer.SR_PACKET_SHAPE_REFERENCE:
+                parseShapeReference(bb);
+                break;
+            case GameServer.SR_PACKET_KNIGHT_SNAPSHOT:
+                parseKnightSnapshot(bb);
                 break;
         }
 
         freeBuffers.add(bb);
     }
 
+    /**
+     * Tell the server we are leaving, so our knight goes away at once.
+     * Nothing is sent unless we logged in to a server.
+     */
+    public void logOut() {
+        if(serverAddress == null || socket == null)
+            return;
+        try {
+            ByteBuffer bb = packetProvider.getSendBuffer();
+            bb.put(GameServer.CL_PACKET_LOGOUT_USER);
+            packetProvider.send(socket, serverAddress, GameServer.SERVER_PORT);
+        } catch(IOException e) {
+            Gdx.app.log("kngt", "CLIENT failed to log out: " + e.getMessage());
+        }
+    }
+
     public void processEvents() {
         int kount = 50;
         ByteBuffer bb;
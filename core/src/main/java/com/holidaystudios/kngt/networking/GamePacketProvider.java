@@ -12,9 +12,12 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
 
 public class GamePacketProvider {
     static final int PACKET_LENGTH = 1024;
@@ -22,41 +25,112 @@ public class GamePacketProvider {
     ByteBuffer sendPacketBuffer;
     DatagramPacket sendPacket;
 
+    // wire usage per packet type, indexed by the unsigned packet type byte
+    final long[] sentPackets = new long[256];
+    final long[] sentBytes = new long[256];
+    final long[] droppedPackets = new long[256]; // not sent as the socket had no room for them
+
     public ByteBuffer getSendBuffer() {
-        sendPacketBuffer.rewind();
+        sendPacketBuffer.clear();
         return sendPacketBuffer;
     }
 
+    private void countSent(int length) {
+        final int type = sendPacketBuffer.get(0) & 0xff;
+        sentPackets[type]++;
+        sentBytes[type] += length;
+    }
+
+    /**
+     * Send the packet written into the send buffer. Only the bytes up to the
+     * buffer position are transmitted.
+     */
     public void send(DatagramSocket serverSocket, InetAddress IPAddress, int port) throws IOException {
-        sendPacket.setData(sendPacketBuffer.array());
+        final int length = sendPacketBuffer.position();
+        sendPacket.setData(sendPacketBuffer.array(), 0, length);
         sendPacket.setAddress(IPAddress);
         sendPacket.setPort(port);
 
         Gdx.app.log("kngt", "SEND peek at packet: " + sendPacketBuffer.array()[0]);
 
         serverSocket.send(sendPacket);
+        countSent(length);
+    }
+
+    public void send(DatagramChannel channel, InetAddress IPAddress, int port) throws IOException {
+        Gdx.app.log("kngt", "SEND peek at packet: " + sendPacketBuffer.array()[0]);
+
+        sendPacketBuffer.flip();
+        final int length = sendPacketBuffer.remaining();
+        // a non-blocking channel sends nothing rather than wait for room in the socket
+        if(channel.send(sendPacketBuffer, new InetSocketAddress(IPAddress, port)) == 0)
+            droppedPackets[sendPacketBuffer.get(0) & 0xff]++;
+        else
+            countSent(length);
+    }
+
+    /**
+     * @return a one line summary of packets and bytes sent, and packets
+     *         dropped, per packet type
+     */
+    public String getWireStatistics() {
+        final StringBuilder sb = new StringBuilder();
+        for(int type = 0; type < sentPackets.length; type++) {
+            if(sentPackets[type] == 0 && droppedPackets[type] == 0)
+                continue;
+            if(sb.length() > 0)
+                sb.append(", ");
+            sb.append("type ").append(type).append(": ")
+              .append(sentPackets[type]).append(" packets/")
+              .append(sentBytes[type]).append(" bytes");
+            if(droppedPackets[type] > 0)
+                sb.append(" (").append(droppedPackets[type]).append(" dropped)");
+        }
+        return sb.toString();
     }
 
     ByteBuffer receivePacketBuffer;
     DatagramPacket receivePacket;
+    InetSocketAddress receiveSource;
 
     public void receive(DatagramSocket socket) throws IOException, SocketTimeoutException {
+        receivePacket.setLength(PACKET_LENGTH);
         socket.receive(receivePacket);
         Gdx.app.log("kngt", "peek at packet A: " + receivePacketBuffer.array()[0]);
-        receivePacketBuffer.rewind();
+        receiveSource = (InetSocketAddress)receivePacket.getSocketAddress();
+
+        // the datagram length is the frame boundary
+        receivePacketBuffer.clear();
+        receivePacketBuffer.limit(receivePacket.getLength());
         Gdx.app.log("kngt", "peek at packet B: " + receivePacketBuffer.array()[0]);
     }
 
+    /**
+     * Non-blocking receive from a channel in non-blocking mode.
+     *
+     * @return false if no datagram was pending, true if one was read into the receive buffer
+     */
+    public boolean receive(DatagramChannel channel) throws IOException {
+        receivePacketBuffer.clear();
+        SocketAddress source = channel.receive(receivePacketBuffer);
+        if(source == null)
+            return false;
+
+        receiveSource = (InetSocketAddress)source;
+        receivePacketBuffer.flip();
+        return true;
+    }
+
     public ByteBuffer getReceivePacketBuffer() {
         return receivePacketBuffer;
     }
 
     public InetAddress getSourceAddress() {
-        return receivePacket.getAddress();
+        return receiveSource.getAddress();
     }
 
     public int getSourcePort() {
-        return receivePacket.getPort();
+        return receiveSource.getPort();
     }
 
     public GamePacketProvider() {
@@ -7,52 +7,98 @@
 package com.holidaystudios.kngt.networking;
 
 import com.holidaystudios.kngt.controller.Human;
+import com.holidaystudios.kngt.model.CaveModel;
 import com.holidaystudios.kngt.model.GameModel;
+import com.holidaystudios.kngt.tools.TickScheduler;
 
 import com.badlogic.gdx.Gdx;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.HashMap;
 import java.util.Map;
 
 public class GameServer extends Thread {
     public final static int SERVER_PORT = 9876;
 
-    public final static int MAXIMUM_WAIT_FOR_READ = 10; // milliseconds to wait for a packet
+    public final static int DEFAULT_TICK_RATE = 30; // simulation steps per second
+    public final static int MAXIMUM_CATCH_UP_TICKS = 5; // steps run back-to-back before the backlog is dropped
+    public final static int STATISTICS_REPORT_INTERVAL = 5; // seconds between tick overrun and wire usage reports
 
     public final static byte CL_PACKET_LOGIN_USER = 04;
     public final static byte CL_PACKET_MOVE = 05;
+    public final static byte CL_PACKET_SNAPSHOT_ACK = 07;
+    public final static byte CL_PACKET_ROOM_REQUEST = 013;
+    public final static byte CL_PACKET_SHAPE_REQUEST = 016;
+    public final static byte CL_PACKET_LOGOUT_USER = 017;
 
     public final static byte SR_PACKET_ROOM_MAP = 02;
-    public final static byte SR_PACKET_KNIGHT_STATE = 03;
+    // 03 was SR_PACKET_KNIGHT_STATE, one knight per datagram, replaced by SR_PACKET_KNIGHT_SNAPSHOT
+    public final static byte SR_PACKET_KNIGHT_SNAPSHOT = 06;
+    public final static byte SR_PACKET_ROOM_MAP_PACKED = 010;
+    public final static byte SR_PACKET_CAVE_SEED = 011;
+    public final static byte SR_PACKET_ROOM_REFERENCE = 012;
+    public final static byte SR_PACKET_ROOM_SHAPE = 014;
+    public final static byte SR_PACKET_SHAPE_REFERENCE = 015;
+
+    // capability flags a client may append to CL_PACKET_LOGIN_USER
+    public final static int CAPABILITY_PACKED_ROOMS = 0x01;
+    public final static int CAPABILITY_SEEDED_CAVE = 0x02;
+    public final static int CAPABILITY_ROOM_SHAPES = 0x04;
 
     Map<InetAddress, Human> humans = new HashMap<InetAddress, Human>(10);
 
     GameModel currentGame;
-    DatagramSocket serverSocket;
-    boolean running;
+    File caveFile;
+    DatagramChannel serverChannel;
+    volatile Selector selector;
+    volatile boolean running;
+
+    TickScheduler scheduler;
+    long reportedOverruns, reportedDroppedTicks;
+    long lastStatisticsReport;
+    long activeRoomTicks, sleepingRoomTicks, reportedTicks; // summed over the ticks since the last report
 
     private GamePacketProvider packetProvider = new GamePacketProvider();
 
     private static GameServer instance = null;
 
     public static void bringUp() {
+        bringUp(DEFAULT_TICK_RATE);
+    }
+
+    public static void bringUp(int tickRate) {
+        bringUp(tickRate, null);
+    }
+
+    /**
+     * @param caveFile a cave written by CaveModel.writeFile() to serve, or null
+     *                 to generate the default cave
+     */
+    public static void bringUp(int tickRate, File caveFile) {
         if(instance != null)
             bringDown();
 
-        instance = new GameServer();
+        instance = new GameServer(tickRate, caveFile);
         instance.start();
     }
 
     public static void bringDown() {
         if(instance != null) {
             instance.running = false;
+
+            Selector s = instance.selector;
+            if(s != null)
+                s.wakeup();
+
             try {
-                instance.wait();
+                instance.join();
             } catch(InterruptedException e) { /* ignore */ }
 
             instance = null;
@@ -67,12 +113,14 @@ public class GameServer extends Thread {
         return instance;
     }
 
-    private GameServer() {
+    private GameServer(int tickRate, File caveFile) {
+        this.caveFile = caveFile;
         running = true;
+        scheduler = new TickScheduler(tickRate, MAXIMUM_CATCH_UP_TICKS);
     }
 
-    private Human loginNewUser(InetAddress address) {
-        return new Human(currentGame, currentGame.addKnight(GameServer.this), address);
+    private Human loginNewUser(InetAddress address, int capabilities) {
+        return new Human(currentGame, currentGame.addKnight(GameServer.this), address, capabilities);
     }
 
     private void decodePacket() {
@@ -84,13 +132,37 @@ public class GameServer extends Thread {
                 case CL_PACKET_MOVE:
                     human.doMove(data);
                     break;
+                case CL_PACKET_SNAPSHOT_ACK:
+                    human.acknowledgeSnapshot(data);
+                    break;
+                case CL_PACKET_ROOM_REQUEST:
+                    try {
+                        human.requestRoom(data, serverChannel);
+                    } catch(IOException e) {
+                        Gdx.app.log("kngt", "SERVER failed to publish requested room: " + e.getMessage());
+                    }
+                    break;
+                case CL_PACKET_LOGOUT_USER:
+                    Gdx.app.log("kngt", "SERVER received logout request.");
+                    human.logout();
+                    humans.remove(packetProvider.getSourceAddress());
+                    break;
+                case CL_PACKET_SHAPE_REQUEST:
+                    try {
+                        human.requestShape(data, serverChannel);
+                    } catch(IOException e) {
+                        Gdx.app.log("kngt", "SERVER failed to publish requested shape: " + e.getMessage());
+                    }
+                    break;
             }
         } else if(data.get() == CL_PACKET_LOGIN_USER) {
             Gdx.app.log("kngt", "SERVER received login request.");
-            Human human = loginNewUser(packetProvider.getSourceAddress());
+            // clients predating capabilities send nothing after the packet type
+            int capabilities = data.hasRemaining() ? data.get() & 0xff : 0;
+            Human human = loginNewUser(packetProvider.getSourceAddress(), capabilities);
             humans.put(packetProvider.getSourceAddress(), human);
             try {
-                human.publishCurrentState(serverSocket);
+                human.publishCurrentState(serverChannel);
             } catch(IOException e) {
                 Gdx.app.log("kngt", "Failed to publish current state in GameServer.decodePacket() - aborting.");
                 System.exit(-1);
@@ -98,32 +170,115 @@ public class GameServer extends Thread {
         }
     }
 
+    private void drainPackets() {
+        try {
+            // handle everything that queued up since the last wakeup, not just one datagram
+            while(packetProvider.receive(serverChannel)) {
+                Gdx.app.log("kngt", "SERVER received packet.");
+                decodePacket();
+            }
+        } catch(IOException e) {
+            Gdx.app.log("kngt", "SERVER failed to receive packet: " + e.getMessage());
+        }
+    }
+
+    private void publishState() {
+        for(Human human : humans.values()) {
+            try {
+                human.publishState(serverChannel);
+            } catch(IOException e) {
+                Gdx.app.log("kngt", "SERVER failed to publish state: " + e.getMessage());
+            }
+        }
+        currentGame.statePublished();
+    }
+
+    private void reportStatistics() {
+        long now = System.nanoTime();
+        if(now - lastStatisticsReport < STATISTICS_REPORT_INTERVAL * 1000000000L)
+            return;
+        lastStatisticsReport = now;
+
+        long overruns = scheduler.getOverrunCount() - reportedOverruns;
+        long dropped = scheduler.getDroppedTicks() - reportedDroppedTicks;
+        if(overruns > 0 || dropped > 0) {
+            Gdx.app.log("kngt", "SERVER tick overruns: " + overruns + " slow ticks, " + dropped + " dropped ticks"
+                    + " in the last " + STATISTICS_REPORT_INTERVAL + "s (longest tick "
+                    + (scheduler.getLongestTickNanos() / 1000) + " us, budget " + (scheduler.getStepNanos() / 1000) + " us)");
+            reportedOverruns = scheduler.getOverrunCount();
+            reportedDroppedTicks = scheduler.getDroppedTicks();
+        }
+        scheduler.resetLongestTick();
+
+        if(!humans.isEmpty())
+            Gdx.app.log("kngt", "SERVER wire usage: " + packetProvider.getWireStatistics());
+
+        if(currentGame != null && currentGame.getCave().isLazy())
+            Gdx.app.log("kngt", "SERVER room cache: " + currentGame.getCave().getRoomCache());
+        if(currentGame != null)
+            Gdx.app.log("kngt", "SERVER room shapes: " + currentGame.getCave().getShapes());
+        if(currentGame != null)
+            Gdx.app.log("kngt", "SERVER knights: " + currentGame.getKnightStore().size() + ", "
+                    + currentGame.getKnightStore().getTimedCount() + " in a timed state");
+        if(reportedTicks > 0) {
+            Gdx.app.log("kngt", "SERVER rooms per tick: " + (activeRoomTicks / reportedTicks) + " awake, "
+                    + (sleepingRoomTicks / reportedTicks) + " sleeping");
+            activeRoomTicks = sleepingRoomTicks = reportedTicks = 0;
+        }
+    }
+
     @Override
     public void run() {
         try {
-            serverSocket = new DatagramSocket(SERVER_PORT);
-            serverSocket.setSoTimeout(MAXIMUM_WAIT_FOR_READ);
-            currentGame = new GameModel("733 kru", 5, 5);
+            selector = Selector.open();
+            serverChannel = DatagramChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(SERVER_PORT));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_READ);
+            if(caveFile != null) {
+                currentGame = new GameModel(CaveModel.open(caveFile));
+            } else {
+                currentGame = new GameModel("733 kru", 5, 5);
+            }
         } catch(IOException e) {
+            Gdx.app.log("kngt", "SERVER failed to start: " + e.getMessage());
             System.exit(-1);
         }
 
-        long lastTime = System.nanoTime();
-        long thisTime;
+        scheduler.start(System.nanoTime());
+        lastStatisticsReport = System.nanoTime();
         while(running) {
-            // game model should act on time
-            thisTime = System.nanoTime();
-            thisTime -= lastTime;
-            thisTime /= 1000000; // convert to milliseconds
-            currentGame.act((int)thisTime);
-
+            // sleep until a datagram arrives or the next simulation step is due
             try {
-                packetProvider.receive(serverSocket);
-                Gdx.app.log("kngt", "SERVER received packet.");
-                decodePacket();
-            } catch(SocketTimeoutException e) {
+                long timeout = (scheduler.nanosUntilNextTick(System.nanoTime()) + 999999) / 1000000;
+                int ready = timeout > 0 ? selector.select(timeout) : selector.selectNow();
+                if(ready > 0) {
+                    selector.selectedKeys().clear();
+                    drainPackets();
+                }
             } catch(IOException e) {
+                Gdx.app.log("kngt", "SERVER select failed: " + e.getMessage());
+            }
+
+            // game model should act on time, in fixed steps
+            int ticks = scheduler.advance(System.nanoTime());
+            for(int k = 0; k < ticks; k++) {
+                long tickStart = System.nanoTime();
+                currentGame.act(scheduler.getStepSeconds());
+                scheduler.tickDone(tickStart, System.nanoTime());
+                activeRoomTicks += currentGame.getActiveRoomCount();
+                sleepingRoomTicks += currentGame.getSleepingRoomCount();
+                reportedTicks++;
             }
+            if(ticks > 0)
+                publishState();
+            reportStatistics();
         }
+
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch(IOException e) { /* ignore */ }
+        selector = null;
     }
 }
@@ -0,0 +1,92 @@
+/*************************************
+ *
+ * Copyright (c) 2014 by Anton Persson
+ *
+ ************************************/
+
+package com.holidaystudios.kngt.networking;
+
+import com.holidaystudios.kngt.model.GameModel;
+import com.holidaystudios.kngt.model.KnightModel;
+import com.holidaystudios.kngt.model.RoomModel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which knights a client should receive: the ones in the same room as
+ * the client's own knight and, optionally, the ones in rooms connected to it
+ * through a door. The room set is only recomputed when the client's knight
+ * changes room; the knights per room come from the occupancy GameModel keeps
+ * up to date as knights move.
+ */
+public class InterestManager {
+    public final static boolean DEFAULT_INCLUDE_ADJACENT_ROOMS = false;
+
+    private final GameModel model;
+    private final boolean includeAdjacentRooms;
+
+    private int roomX = -1, roomY = -1;
+    private final int[] roomsX = new int[5];
+    private final int[] roomsY = new int[5];
+    private int roomCount = 0;
+
+    private final List<KnightModel> interesting = new ArrayList<KnightModel>();
+
+    public InterestManager(GameModel model, boolean includeAdjacentRooms) {
+        this.model = model;
+        this.includeAdjacentRooms = includeAdjacentRooms;
+    }
+
+    private void addRoom(int x, int y) {
+        roomsX[roomCount] = x;
+        roomsY[roomCount] = y;
+        roomCount++;
+    }
+
+    /**
+     * Follow the client's knight.
+     *
+     * @return true if the knight changed room since the last call
+     */
+    public boolean update(KnightModel self) {
+        if(self.getRoomX() == roomX && self.getRoomY() == roomY)
+            return false;
+
+        roomX = self.getRoomX();
+        roomY = self.getRoomY();
+        roomCount = 0;
+        addRoom(roomX, roomY);
+
+        if(includeAdjacentRooms) {
+            if(model.hasDoor(roomX, roomY, RoomModel.DoorPosition.N)) addRoom(roomX, roomY - 1);
+            if(model.hasDoor(roomX, roomY, RoomModel.DoorPosition.S)) addRoom(roomX, roomY + 1);
+            if(model.hasDoor(roomX, roomY, RoomModel.DoorPosition.W)) addRoom(roomX - 1, roomY);
+            if(model.hasDoor(roomX, roomY, RoomModel.DoorPosition.E)) addRoom(roomX + 1, roomY);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether anything happened in the rooms of interest at or after
+     *         the given time, see GameModel.isRoomAwakeSince()
+     */
+    public boolean isAwakeSince(long time) {
+        for(int k = 0; k < roomCount; k++) {
+            if(model.isRoomAwakeSince(roomsX[k], roomsY[k], time))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the knights in the rooms of interest, the list is reused between calls
+     */
+    public List<KnightModel> collect() {
+        interesting.clear();
+        for(int k = 0; k < roomCount; k++) {
+            model.collectKnightsInRoom(roomsX[k], roomsY[k], interesting);
+        }
+        return interesting;
+    }
+}
@@ -0,0 +1,127 @@
+/*************************************
+ *
+ * Copyright (c) 2014 by Anton Persson
+ *
+ ************************************/
+
+package com.holidaystudios.kngt.networking;
+
+import com.holidaystudios.kngt.model.KnightSnapshot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side counterpart of KnightDeltaEncoder. Keeps the last few decoded
+ * states of every knight so that entries can be resolved against whichever
+ * baseline the server picked.
+ */
+public class KnightDeltaDecoder {
+    // decoded states kept per knight, every baseline the encoder may pick and the state being decoded
+    public final static int HISTORY_LENGTH = KnightDeltaEncoder.BASELINE_WINDOW + 1;
+
+    private static class KnightHistory {
+        final KnightSnapshot[] states = new KnightSnapshot[HISTORY_LENGTH];
+        int next = 0;
+
+        KnightHistory() {
+            for(int k = 0; k < HISTORY_LENGTH; k++) {
+                states[k] = new KnightSnapshot();
+                states[k].setSequence(-1);
+            }
+        }
+
+        KnightSnapshot find(int sequence) {
+            for(KnightSnapshot state : states) {
+                if(state.getSequence() == sequence)
+                    return state;
+            }
+            return null;
+        }
+
+        KnightSnapshot claim() {
+            KnightSnapshot state = states[next];
+            next = (next + 1) % HISTORY_LENGTH;
+            return state;
+        }
+    }
+
+    private final Map<Integer, KnightHistory> knights = new HashMap<Integer, KnightHistory>();
+
+    private int lastSequence;
+    private final List<Integer> missing = new ArrayList<Integer>(); // knights skipped in the last datagram
+
+    /**
+     * @return the sequence number of the last decoded datagram
+     */
+    public int getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the knights whose entries in the last datagram were against a
+     *         baseline we no longer have, to be listed in its acknowledgement
+     */
+    public List<Integer> getMissing() {
+        return missing;
+    }
+
+    /**
+     * Decode the body of a SR_PACKET_KNIGHT_SNAPSHOT (after the type byte).
+     * Entries against a baseline we no longer have are skipped, see getMissing().
+     *
+     * @param decoded receives the new state of every knight in the packet, and
+     *                a snapshot flagged as removed for knights to forget
+     * @return true if every entry could be decoded
+     */
+    public boolean decode(ByteBuffer bb, List<KnightSnapshot> decoded) {
+        final int sequence = bb.getShort() & 0xffff;
+        final int count = bb.get() & 0xff;
+        lastSequence = sequence;
+        missing.clear();
+
+        boolean complete = true;
+        for(int k = 0; k < count; k++) {
+            final int knightID = bb.getInt();
+            final int mask = bb.get() & 0xff;
+
+            if(mask == KnightSnapshot.REMOVED) {
+                knights.remove(knightID);
+                KnightSnapshot removal = new KnightSnapshot();
+                removal.setRemoved(knightID);
+                decoded.add(removal);
+                continue;
+            }
+
+            KnightHistory history = knights.get(knightID);
+            if(history == null) {
+                history = new KnightHistory();
+                knights.put(knightID, history);
+            }
+
+            KnightSnapshot baseline = null;
+            if((mask & KnightSnapshot.FIELD_FULL) == 0) {
+                final int age = bb.get() & 0xff;
+                baseline = history.find((sequence - age) & 0xffff);
+            }
+
+            if(baseline == null && (mask & KnightSnapshot.FIELD_FULL) == 0) {
+                // we no longer have the baseline, skip the entry and ask the server for the full state
+                KnightSnapshot.skip(bb, mask);
+                missing.add(knightID);
+                complete = false;
+                continue;
+            }
+
+            KnightSnapshot state = history.claim();
+
+            state.read(bb, knightID, mask, baseline);
+            state.setSequence(sequence);
+            decoded.add(state);
+        }
+        return complete;
+    }
+}
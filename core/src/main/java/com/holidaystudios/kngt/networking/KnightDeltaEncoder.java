@@ -0,0 +1,253 @@
+/*************************************
+ *
+ * Copyright (c) 2014 by Anton Persson
+ *
+ ************************************/
+
+package com.holidaystudios.kngt.networking;
+
+import com.holidaystudios.kngt.model.KnightModel;
+import com.holidaystudios.kngt.model.KnightSnapshot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server side, per client, encoder of SR_PACKET_KNIGHT_SNAPSHOT.
+ *
+ * Every datagram gets a sequence number and the client acknowledges each one
+ * with CL_PACKET_SNAPSHOT_ACK, listing the knights it could not decode for
+ * lack of a baseline; those are sent in full next. The state of a knight in the
+ * newest acknowledged datagram is its baseline; knights are sent as deltas
+ * against their baseline and not at all when nothing changed. If a baseline
+ * is older than BASELINE_WINDOW sequences the client may have dropped it, and
+ * the knight is sent in full instead.
+ *
+ * Knights that drop out of the published set are announced with a removal
+ * entry, repeated until a datagram carrying it has been acknowledged. Acks
+ * may arrive out of order, so an ack only counts for a knight if its datagram
+ * was sent after the knight was last added or removed.
+ *
+ * Packet layout: type, sequence (unsigned short), entry count (unsigned byte),
+ * then count entries as written by KnightSnapshot.write().
+ */
+public class KnightDeltaEncoder {
+    public final static int BASELINE_WINDOW = 64; // sequences a baseline stays usable for
+
+    private int sequence = 0;
+
+    // newest acknowledged state per knight
+    private final Map<Integer, KnightSnapshot> baselines = new HashMap<Integer, KnightSnapshot>();
+
+    // what was sent in each of the last BASELINE_WINDOW datagrams, snapshot objects are reused
+    private final int[] historySequence = new int[BASELINE_WINDOW];
+    private final int[] historyCount = new int[BASELINE_WINDOW];
+    private final List<List<KnightSnapshot>> history = new ArrayList<List<KnightSnapshot>>(BASELINE_WINDOW);
+
+    // publish round in which each knight the client knows about was last part of the set
+    private final Map<Integer, Integer> visibleRound = new HashMap<Integer, Integer>();
+    private int round = 0;
+
+    // knights whose removal has not been acknowledged yet
+    private final Set<Integer> removing = new HashSet<Integer>();
+
+    // sequence of the first datagram since each knight was last added or removed, acks of older ones are stale
+    private final Map<Integer, Integer> since = new HashMap<Integer, Integer>();
+
+    private final KnightSnapshot current = new KnightSnapshot();
+
+    private ByteBuffer packet;
+    private int countPosition;
+    private int count;
+    private int published = 0; // entries written by the last publish()
+
+    public KnightDeltaEncoder() {
+        for(int k = 0; k < BASELINE_WINDOW; k++) {
+            history.add(new ArrayList<KnightSnapshot>());
+            historySequence[k] = -1;
+        }
+    }
+
+    static int sequenceDistance(int newer, int older) {
+        return (newer - older) & 0xffff;
+    }
+
+    private void beginPacket(GamePacketProvider packetProvider) {
+        sequence = (sequence + 1) & 0xffff;
+        final int slot = sequence % BASELINE_WINDOW;
+        historySequence[slot] = sequence;
+        historyCount[slot] = 0;
+
+        packet = packetProvider.getSendBuffer();
+        packet.put(GameServer.SR_PACKET_KNIGHT_SNAPSHOT);
+        packet.putShort((short)sequence);
+        countPosition = packet.position();
+        packet.put((byte)0);
+        count = 0;
+    }
+
+    private void finishPacket(GamePacketProvider packetProvider, DatagramChannel serverChannel, InetAddress IPAddress) throws IOException {
+        packet.put(countPosition, (byte)count);
+        packetProvider.send(serverChannel, IPAddress, GameClient.CLIENT_PORT);
+        packet = null;
+    }
+
+    private void remember(KnightSnapshot snapshot) {
+        final int slot = sequence % BASELINE_WINDOW;
+        final List<KnightSnapshot> sent = history.get(slot);
+        if(historyCount[slot] == sent.size())
+            sent.add(new KnightSnapshot());
+        KnightSnapshot copy = sent.get(historyCount[slot]++);
+        copy.set(snapshot);
+        copy.setSequence(sequence);
+    }
+
+    private void ensureSpace(GamePacketProvider packetProvider, DatagramChannel serverChannel, InetAddress IPAddress) throws IOException {
+        if(packet == null || count == 255 || packet.remaining() < KnightSnapshot.MAXIMUM_ENTRY_LENGTH) {
+            if(packet != null)
+                finishPacket(packetProvider, serverChannel, IPAddress);
+            beginPacket(packetProvider);
+        }
+    }
+
+    /**
+     * Send whatever changed in the given knights since their baselines, and
+     * removals for knights that were published before but are not in the list.
+     */
+    public void publish(List<KnightModel> knights, DatagramChannel serverChannel, InetAddress IPAddress) throws IOException {
+        GamePacketProvider packetProvider = GameServer.getInstance().getPacketProvider();
+
+        round++;
+        published = 0;
+        for(KnightModel knight : knights) {
+            if(removing.remove(knight.getKnightID())) {
+                // came back before the removal was acknowledged, the client may have dropped it already
+                baselines.remove(knight.getKnightID());
+            }
+            final boolean added = visibleRound.put(knight.getKnightID(), round) == null;
+
+            current.capture(knight);
+
+            KnightSnapshot baseline = baselines.get(knight.getKnightID());
+            int mask;
+            if(baseline == null) {
+                mask = KnightSnapshot.FIELD_FULL;
+            } else {
+                mask = current.changedFields(baseline);
+                if(mask == 0)
+                    continue;
+            }
+
+            ensureSpace(packetProvider, serverChannel, IPAddress);
+            if(added)
+                since.put(knight.getKnightID(), sequence);
+
+            // a baseline the client may no longer have means a full resync
+            if(baseline != null && sequenceDistance(sequence, baseline.getSequence()) >= BASELINE_WINDOW)
+                mask = KnightSnapshot.FIELD_FULL;
+
+            if((mask & KnightSnapshot.FIELD_FULL) != 0) {
+                current.write(packet, mask, null, 0);
+            } else {
+                current.write(packet, mask, baseline, sequenceDistance(sequence, baseline.getSequence()));
+            }
+            count++;
+            published++;
+            remember(current);
+        }
+
+        Iterator<Map.Entry<Integer, Integer>> known = visibleRound.entrySet().iterator();
+        while(known.hasNext()) {
+            Map.Entry<Integer, Integer> entry = known.next();
+            if(entry.getValue() != round) {
+                removing.add(entry.getKey());
+                baselines.remove(entry.getKey());
+                since.remove(entry.getKey());
+                known.remove();
+            }
+        }
+
+        for(Integer knightID : removing) {
+            ensureSpace(packetProvider, serverChannel, IPAddress);
+            if(!since.containsKey(knightID))
+                since.put(knightID, sequence);
+            KnightSnapshot.writeRemoval(packet, knightID);
+            count++;
+            published++;
+            current.setRemoved(knightID);
+            remember(current);
+        }
+
+        if(packet != null)
+            finishPacket(packetProvider, serverChannel, IPAddress);
+    }
+
+    /**
+     * @return true if the last publish() had nothing to send, so the client
+     *         has acknowledged everything about the knights it was given
+     */
+    public boolean isSettled() {
+        return published == 0 && removing.isEmpty();
+    }
+
+    private boolean isCurrent(int knightID, int ackedSequence) {
+        final Integer first = since.get(knightID);
+        return first != null && sequenceDistance(ackedSequence, first) < 0x8000;
+    }
+
+    /**
+     * The client decoded the datagram with the given sequence number, so
+     * everything in it can be used as baseline.
+     */
+    public void acknowledge(int ackedSequence) {
+        acknowledge(ackedSequence, Collections.<Integer>emptyList());
+    }
+
+    /**
+     * The client decoded the datagram with the given sequence number except
+     * for the entries of the missing knights, which it had no baseline for.
+     */
+    public void acknowledge(int ackedSequence, List<Integer> missing) {
+        final int slot = ackedSequence % BASELINE_WINDOW;
+        if(historySequence[slot] != ackedSequence)
+            return; // too old, the slot has been reused
+
+        for(Integer knightID : missing) {
+            if(isCurrent(knightID, ackedSequence))
+                baselines.remove(knightID);
+        }
+
+        final List<KnightSnapshot> sent = history.get(slot);
+        for(int k = 0; k < historyCount[slot]; k++) {
+            final KnightSnapshot snapshot = sent.get(k);
+            if(!isCurrent(snapshot.getKnightID(), ackedSequence))
+                continue; // sent before the knight was last added or removed
+            if(snapshot.isRemoved()) {
+                if(removing.remove(snapshot.getKnightID()))
+                    since.remove(snapshot.getKnightID());
+                continue;
+            }
+            if(removing.contains(snapshot.getKnightID()) || missing.contains(snapshot.getKnightID()))
+                continue;
+
+            KnightSnapshot baseline = baselines.get(snapshot.getKnightID());
+            if(baseline == null) {
+                baseline = new KnightSnapshot();
+                baselines.put(snapshot.getKnightID(), baseline);
+            } else if(sequenceDistance(ackedSequence, baseline.getSequence()) >= 0x8000) {
+                continue; // we already have a newer baseline
+            }
+            baseline.set(snapshot);
+        }
+    }
+}
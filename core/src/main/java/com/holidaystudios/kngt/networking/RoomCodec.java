@@ -0,0 +1,109 @@
+/*************************************
+ *
+ * Copyright (c) 2014 by Anton Persson
+ *
+ ************************************/
+
+package com.holidaystudios.kngt.networking;
+
+import com.holidaystudios.kngt.model.RoomModel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact wire encoding of a room bitmap. TileTypes only has four values, so a
+ * tile needs two bits.
+ *
+ * Layout: rows (unsigned byte), columns (unsigned byte), mode, data.
+ * MODE_PACKED stores four tiles per byte, first tile in the high bits.
+ * MODE_RUN_LENGTH stores runs as one byte each, tile type in the high two bits
+ * and run length - 1 in the low six. The encoder picks whichever is smaller.
+ */
+public class RoomCodec {
+    public final static byte MODE_PACKED = 0;
+    public final static byte MODE_RUN_LENGTH = 1;
+
+    private final static int MAXIMUM_RUN = 64;
+
+    private static int runLengthSize(byte[] tiles) {
+        int runs = 0;
+        int current = -1, length = 0;
+        for(byte tile : tiles) {
+            if(tile == current && length < MAXIMUM_RUN) {
+                length++;
+            } else {
+                runs++;
+                current = tile;
+                length = 1;
+            }
+        }
+        return runs;
+    }
+
+    public static void encode(RoomModel room, ByteBuffer bb) {
+        final byte[] tiles = room.getTiles();
+
+        bb.put((byte)room.getHeight());
+        bb.put((byte)room.getWidth());
+
+        if(runLengthSize(tiles) < (tiles.length + 3) / 4) {
+            bb.put(MODE_RUN_LENGTH);
+            int current = -1, length = 0;
+            for(byte tile : tiles) {
+                if(tile == current && length < MAXIMUM_RUN) {
+                    length++;
+                } else {
+                    if(length > 0)
+                        bb.put((byte)((current << 6) | (length - 1)));
+                    current = tile;
+                    length = 1;
+                }
+            }
+            bb.put((byte)((current << 6) | (length - 1)));
+        } else {
+            bb.put(MODE_PACKED);
+            int packed = 0, count = 0;
+            for(byte tile : tiles) {
+                packed = (packed << 2) | (tile & 0x03);
+                if(++count == 4) {
+                    bb.put((byte)packed);
+                    packed = 0;
+                    count = 0;
+                }
+            }
+            if(count > 0)
+                bb.put((byte)(packed << (2 * (4 - count))));
+        }
+    }
+
+    public static RoomModel decode(ByteBuffer bb) {
+        final int rows = bb.get() & 0xff;
+        final int columns = bb.get() & 0xff;
+        final byte mode = bb.get();
+
+        byte[] tiles = new byte[rows * columns];
+
+        if(mode == MODE_RUN_LENGTH) {
+            int i = 0;
+            while(i < tiles.length) {
+                final int run = bb.get() & 0xff;
+                final byte tile = (byte)(run >> 6);
+                final int end = Math.min(tiles.length, i + (run & 0x3f) + 1);
+                while(i < end)
+                    tiles[i++] = tile;
+            }
+        } else {
+            int packed = 0, count = 0;
+            for(int i = 0; i < tiles.length; i++) {
+                if(count == 0) {
+                    packed = bb.get() & 0xff;
+                    count = 4;
+                }
+                count--;
+                tiles[i] = (byte)((packed >> (2 * count)) & 0x03);
+            }
+        }
+
+        return new RoomModel(columns, rows, tiles);
+    }
+}
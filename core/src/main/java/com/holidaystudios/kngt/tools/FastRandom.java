@@ -0,0 +1,70 @@
+package com.holidaystudios.kngt.tools;
+
+/**
+ * Small, fast, deterministic random number generator (SplitMix64).
+ *
+ * Unlike java.util.Random it is not synchronized, so an instance must not be
+ * shared between threads; use fork() to hand each worker, or each room, a
+ * generator of its own. A forked generator only depends on the seed of its
+ * parent and the key, never on how many numbers the parent has produced.
+ */
+public class FastRandom {
+
+    private final static long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+    private long state;
+
+    public FastRandom(final long seed) {
+        this.seed = seed;
+        this.state = seed;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a seed string.
+     */
+    public static long seedFromString(final String seed) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i=0; i<seed.length(); i++) {
+            hash ^= seed.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return an independent generator derived from this one's seed and the key
+     */
+    public FastRandom fork(final long key) {
+        return new FastRandom(mix(seed ^ mix(key + GOLDEN_GAMMA)));
+    }
+
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    /**
+     * @return a uniformly distributed double in [0, 1)
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * @return a uniformly distributed int in [0, bound)
+     */
+    public int nextInt(final int bound) {
+        return (int) ((nextLong() >>> 33) * bound >>> 31);
+    }
+}
@@ -0,0 +1,115 @@
+package com.holidaystudios.kngt.tools;
+
+/**
+ * Fixed timestep scheduler. Elapsed real time is accumulated and handed out
+ * in whole ticks of exactly 1/tickRate seconds, so the simulation advances at
+ * the same cadence no matter how often (or how late) the caller wakes up.
+ *
+ * All times are System.nanoTime() values.
+ */
+public class TickScheduler {
+
+    private final int tickRate;
+    private final long tickNanos;
+    private final int maxCatchUpTicks;
+
+    private long lastTime;
+    private long accumulator;
+
+    private long overrunCount;   // ticks that took longer to run than one step
+    private long droppedTicks;   // ticks thrown away by the catch-up cap
+    private long longestTick;    // since the last resetLongestTick()
+
+    /**
+     * @param tickRate simulation steps per second
+     * @param maxCatchUpTicks most ticks handed out by one call to advance(), any
+     *                        backlog beyond that is dropped instead of replayed
+     */
+    public TickScheduler(final int tickRate, final int maxCatchUpTicks) {
+        if(tickRate <= 0 || maxCatchUpTicks <= 0)
+            throw new IllegalArgumentException("tickRate and maxCatchUpTicks must be positive.");
+
+        this.tickRate = tickRate;
+        this.tickNanos = 1000000000L / tickRate;
+        this.maxCatchUpTicks = maxCatchUpTicks;
+    }
+
+    public void start(final long now) {
+        lastTime = now;
+        accumulator = 0;
+    }
+
+    public int getTickRate() {
+        return tickRate;
+    }
+
+    public float getStepSeconds() {
+        return 1.0f / tickRate;
+    }
+
+    public long getStepNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * @return nanoseconds until the next tick is due, 0 if one is already due
+     */
+    public long nanosUntilNextTick(final long now) {
+        return Math.max(0, tickNanos - accumulator - (now - lastTime));
+    }
+
+    /**
+     * Accumulate the time passed since the previous call.
+     *
+     * @return the number of fixed steps to run now
+     */
+    public int advance(final long now) {
+        accumulator += now - lastTime;
+        lastTime = now;
+
+        long due = accumulator / tickNanos;
+        if(due > maxCatchUpTicks) {
+            droppedTicks += due - maxCatchUpTicks;
+            due = maxCatchUpTicks;
+            accumulator = due * tickNanos;
+        }
+        accumulator -= due * tickNanos;
+
+        return (int)due;
+    }
+
+    /**
+     * Account for one executed tick.
+     */
+    public void tickDone(final long startTime, final long endTime) {
+        final long duration = endTime - startTime;
+        if(duration > tickNanos)
+            overrunCount++;
+        if(duration > longestTick)
+            longestTick = duration;
+    }
+
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    /**
+     * @return the longest tick since the scheduler was created or
+     *         resetLongestTick() was last called
+     */
+    public long getLongestTickNanos() {
+        return longestTick;
+    }
+
+    /**
+     * Start looking for the longest tick afresh, at the start of a report
+     * interval.
+     */
+    public void resetLongestTick() {
+        longestTick = 0;
+    }
+}
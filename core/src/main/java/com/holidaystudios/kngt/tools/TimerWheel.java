@@ -0,0 +1,166 @@
+package com.holidaystudios.kngt.tools;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timer wheel over entries numbered 0 to capacity-1, at most one
+ * timer per entry. Timers live in intrusive doubly linked lists kept in int
+ * arrays, so scheduling and cancelling cost O(1) and allocate nothing.
+ *
+ * Level 0 has one bucket per tick for the next SLOTS ticks, every higher
+ * level buckets SLOTS times as many ticks. Buckets of higher levels are
+ * spread into the lower ones as time reaches them, so advancing only looks
+ * at timers that are due or about to move one level down. Timers further
+ * away than the top level reaches are parked there and moved on again.
+ */
+public class TimerWheel {
+
+    public interface Listener {
+        void expired(int entry);
+    }
+
+    private final static int BITS = 6;
+    private final static int SLOTS = 1 << BITS;
+    private final static int LEVELS = 4;
+    private final static int NONE = -1;
+
+    private final int[] head = new int[LEVELS * SLOTS];
+    private int[] next, prev, bucket;
+    private long[] deadline;
+
+    private long now;
+    private int scheduled = 0;
+
+    public TimerWheel(final int capacity, final long now) {
+        this.now = now;
+        Arrays.fill(head, NONE);
+        next = new int[capacity];
+        prev = new int[capacity];
+        bucket = new int[capacity];
+        deadline = new long[capacity];
+        Arrays.fill(bucket, NONE);
+    }
+
+    public void ensureCapacity(final int capacity) {
+        if (capacity <= bucket.length) {
+            return;
+        }
+        final int from = bucket.length;
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        deadline = Arrays.copyOf(deadline, capacity);
+        bucket = Arrays.copyOf(bucket, capacity);
+        Arrays.fill(bucket, from, capacity, NONE);
+    }
+
+    public long getTime() {
+        return now;
+    }
+
+    public int getScheduledCount() {
+        return scheduled;
+    }
+
+    private void link(final int entry, final int b) {
+        bucket[entry] = b;
+        prev[entry] = NONE;
+        next[entry] = head[b];
+        if (head[b] != NONE) {
+            prev[head[b]] = entry;
+        }
+        head[b] = entry;
+    }
+
+    private void unlink(final int entry) {
+        final int b = bucket[entry];
+        if (prev[entry] != NONE) {
+            next[prev[entry]] = next[entry];
+        } else {
+            head[b] = next[entry];
+        }
+        if (next[entry] != NONE) {
+            prev[next[entry]] = prev[entry];
+        }
+        bucket[entry] = NONE;
+    }
+
+    /**
+     * Put an entry in the bucket for its deadline, which must not be in the
+     * past. A deadline of now lands in the bucket being expired.
+     */
+    private void place(final int entry) {
+        final long delta = deadline[entry] - now;
+        for (int level=0; level<LEVELS; level++) {
+            if (delta < 1L << (BITS * (level + 1))) {
+                link(entry, level * SLOTS + (int)((deadline[entry] >>> (BITS * level)) & (SLOTS - 1)));
+                return;
+            }
+        }
+        // beyond the top level, park it as far out as the top level reaches
+        final int top = LEVELS - 1;
+        link(entry, top * SLOTS + (int)(((now >>> (BITS * top)) - 1) & (SLOTS - 1)));
+    }
+
+    /**
+     * Fire the entry at the given time, or on the next advance() if that time
+     * has passed. Replaces any timer the entry had.
+     */
+    public void schedule(final int entry, final long time) {
+        cancel(entry);
+        deadline[entry] = Math.max(time, now + 1);
+        place(entry);
+        scheduled++;
+    }
+
+    public void cancel(final int entry) {
+        if (bucket[entry] != NONE) {
+            unlink(entry);
+            scheduled--;
+        }
+    }
+
+    private void cascade(final int b) {
+        int entry = head[b];
+        head[b] = NONE;
+        while (entry != NONE) {
+            final int following = next[entry];
+            bucket[entry] = NONE;
+            place(entry);
+            entry = following;
+        }
+    }
+
+    /**
+     * Move time forward, calling the listener for every timer that falls due
+     * on the way, in deadline order. Entries may be scheduled again from the
+     * listener.
+     */
+    public void advance(final long time, final Listener listener) {
+        while (now < time) {
+            now++;
+
+            //Pull the buckets that just came within reach of a lower level,
+            //highest first so nothing lands in a bucket already pulled
+            int level = 1;
+            while (level < LEVELS && (now & ((1L << (BITS * level)) - 1)) == 0) {
+                level++;
+            }
+            for (level--; level>0; level--) {
+                cascade(level * SLOTS + (int)((now >>> (BITS * level)) & (SLOTS - 1)));
+            }
+
+            final int b = (int)(now & (SLOTS - 1));
+            while (head[b] != NONE) {
+                final int entry = head[b];
+                unlink(entry);
+                if (deadline[entry] > now) {
+                    // parked beyond the top level
+                    place(entry);
+                    continue;
+                }
+                scheduled--;
+                listener.expired(entry);
+            }
+        }
+    }
+}
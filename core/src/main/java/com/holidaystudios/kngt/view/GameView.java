@@ -22,6 +22,7 @@ import com.holidaystudios.kngt.Defs;
 import com.holidaystudios.kngt.model.Direction;
 import com.holidaystudios.kngt.TileTypes;
 import com.holidaystudios.kngt.model.GameModel;
+import com.holidaystudios.kngt.model.RoomModel;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -59,7 +60,7 @@ public class GameView implements Screen, GestureListener, InputProcessor {
         stage.clear();
     }
 
-    public void renderRoom(final byte[][] bitmap) {
+    public void renderRoom(final RoomModel room) {
         map = new TiledMap();
         MapLayers layers = map.getLayers();
         TiledMapTileLayer layer = new TiledMapTileLayer(
@@ -69,9 +70,9 @@ public class GameView implements Screen, GestureListener, InputProcessor {
             Defs.TILE_SIZE
         );
 
-        for (int y=0; y<bitmap.length; y++) {
-            for (int x=0; x<bitmap[y].length; x++) {
-                final byte p = bitmap[y][x];
+        for (int y=0; y<room.getHeight(); y++) {
+            for (int x=0; x<room.getWidth(); x++) {
+                final byte p = room.getTile(x, y);
                 TiledMapTileLayer.Cell cell = new TiledMapTileLayer.Cell();
                 StaticTiledMapTile mapTile = null;
 
@@ -86,7 +87,7 @@ public class GameView implements Screen, GestureListener, InputProcessor {
                 }
                 cell.setTile(mapTile);
                 //Inverse Y axis
-                layer.setCell(x, (bitmap.length-1)-y, cell);
+                layer.setCell(x, (room.getHeight()-1)-y, cell);
             }
         }
         layers.add(layer);
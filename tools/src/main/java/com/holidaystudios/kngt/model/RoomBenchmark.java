@@ -0,0 +1,177 @@
+package com.holidaystudios.kngt.model;
+
+import com.holidaystudios.kngt.Defs;
+import com.holidaystudios.kngt.TileTypes;
+import com.holidaystudios.kngt.tools.FastRandom;
+
+/**
+ * Times the bitboards of RoomModel against scanning the tiles, for the wall
+ * pass of room generation and for looking up single tiles, at the room size
+ * of the game and at larger ones. Every room is checked to come out the same
+ * both ways. Rooms come from a fixed seed, so runs are comparable.
+ *
+ * Lives in the model package of the tools module to reach the masks of
+ * RoomModel, which the game does not expose.
+ *
+ * Usage: RoomBenchmark [ROOM_SIDE ...]
+ */
+public class RoomBenchmark {
+    private final static int ROUNDS = 5; // the first is warm up and not reported
+    private final static int TILES_PER_ROUND = 8 * 1024 * 1024;
+
+    static volatile long sink; // keeps the results of the timed loops alive
+
+    private static RoomModel[] generate(final int side, final int count) {
+        final FastRandom random = new FastRandom(42);
+        final RoomModel[] rooms = new RoomModel[count];
+        for (int k=0; k<count; k++) {
+            final RoomModel room = new RoomModel(0, 0, side, random.fork(k));
+            room.setDoor(RoomModel.DoorPosition.N, 2 + k % (side - 3));
+            room.setDoor(RoomModel.DoorPosition.E, 2 + (k * 7) % (side - 3));
+            if (k % 3 == 0) {
+                room.setDoor(RoomModel.DoorPosition.S, 2 + k % (side - 3));
+            }
+            room.createInterior();
+            rooms[k] = room;
+        }
+        return rooms;
+    }
+
+    /**
+     * The tiles next to a floor tile that are not floor themselves, found by
+     * looking at the eight neighbours of every tile.
+     */
+    private static long[] scalarWalls(final byte[] t, final int w, final int h) {
+        final long[] walls = new long[(w * h + 63) >>> 6];
+        for (int y=0; y<h; y++) {
+            for (int x=0, i=y*w; x<w; x++, i++) {
+                if (t[i] == TileTypes.TILE_FLOOR) {
+                    continue;
+                }
+                if ((y>0 && x>0 && t[i-w-1] == TileTypes.TILE_FLOOR)
+                ||  (y>0 &&        t[i-w]   == TileTypes.TILE_FLOOR)
+                ||  (y>0 && x<w-1 && t[i-w+1] == TileTypes.TILE_FLOOR)
+                ||  (       x>0 && t[i-1]   == TileTypes.TILE_FLOOR)
+                ||  (       x<w-1 && t[i+1]   == TileTypes.TILE_FLOOR)
+                ||  (y<h-1 && x>0 && t[i+w-1] == TileTypes.TILE_FLOOR)
+                ||  (y<h-1 &&        t[i+w]   == TileTypes.TILE_FLOOR)
+                ||  (y<h-1 && x<w-1 && t[i+w+1] == TileTypes.TILE_FLOOR)) {
+                    walls[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+        return walls;
+    }
+
+    private static long[] bitboardWalls(final TileMask floor) {
+        final long[] walls = floor.dilate();
+        for (int k=0; k<walls.length; k++) {
+            walls[k] &= ~floor.words[k];
+        }
+        return walls;
+    }
+
+    private static int scalarFloor(final byte[] t, final int side) {
+        int floor = 0;
+        for (int y=0; y<side; y++) {
+            for (int x=0; x<side; x++) {
+                if (t[y * side + x] == TileTypes.TILE_FLOOR) {
+                    floor++;
+                }
+            }
+        }
+        return floor;
+    }
+
+    private static int bitboardFloor(final TileMask mask, final int side) {
+        int floor = 0;
+        for (int y=0; y<side; y++) {
+            for (int x=0; x<side; x++) {
+                if (mask.get(y * side + x)) {
+                    floor++;
+                }
+            }
+        }
+        return floor;
+    }
+
+    private static void check(final RoomModel[] rooms, final int side) {
+        for (int k=0; k<rooms.length; k++) {
+            final RoomModel room = rooms[k];
+            final long[] scalar = scalarWalls(room.getTiles(), side, side);
+            final long[] bitboard = bitboardWalls(room.getFloorMask());
+            for (int i=0; i<scalar.length; i++) {
+                if (scalar[i] != bitboard[i]) {
+                    throw new IllegalStateException("walls differ in room " + k + " of side " + side);
+                }
+            }
+            if (scalarFloor(room.getTiles(), side) != bitboardFloor(room.getFloorMask(), side)) {
+                throw new IllegalStateException("floor tiles differ in room " + k + " of side " + side);
+            }
+        }
+    }
+
+    private static void run(final int side) {
+        final int count = Math.max(1, TILES_PER_ROUND / (side * side));
+        final RoomModel[] rooms = generate(side, count);
+        check(rooms, side);
+
+        long scalarWalls = 0, bitboardWalls = 0, scalarFloor = 0, bitboardFloor = 0;
+        long sum = 0;
+        for (int round=0; round<ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (final RoomModel room : rooms) {
+                sum += scalarWalls(room.getTiles(), side, side)[0];
+            }
+            final long scalarWallTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (final RoomModel room : rooms) {
+                sum += bitboardWalls(room.getFloorMask())[0];
+            }
+            final long bitboardWallTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (final RoomModel room : rooms) {
+                sum += scalarFloor(room.getTiles(), side);
+            }
+            final long scalarFloorTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (final RoomModel room : rooms) {
+                sum += bitboardFloor(room.getFloorMask(), side);
+            }
+            final long bitboardFloorTime = System.nanoTime() - start;
+
+            if (round > 0) {
+                scalarWalls += scalarWallTime;
+                bitboardWalls += bitboardWallTime;
+                scalarFloor += scalarFloorTime;
+                bitboardFloor += bitboardFloorTime;
+            }
+        }
+
+        sink = sum;
+
+        final double perRoom = 1e3 * (ROUNDS - 1) * count; // ns to us per room
+        System.out.printf("%3dx%-3d %6d rooms  walls %8.3f / %8.3f us (%.1fx)  floor lookups %8.3f / %8.3f us (%.1fx)%n",
+                side, side, count,
+                scalarWalls / perRoom, bitboardWalls / perRoom, (double)scalarWalls / bitboardWalls,
+                scalarFloor / perRoom, bitboardFloor / perRoom, (double)scalarFloor / bitboardFloor);
+    }
+
+    public static void main(final String[] args) {
+        int[] sides = {Defs.TILES_PER_DISTANCE, 31, 63, 127};
+        if (args.length > 0) {
+            sides = new int[args.length];
+            for (int k=0; k<args.length; k++) {
+                sides[k] = Integer.parseInt(args[k]);
+            }
+        }
+
+        System.out.println("times per room, scanning tiles / bitboards");
+        for (final int side : sides) {
+            run(side);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.holidaystudios.kngtz;
+
+import com.holidaystudios.kngt.model.CaveConnectivity;
+import com.holidaystudios.kngt.model.CaveModel;
+import com.holidaystudios.kngt.model.RoomModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Generates a cave outside the game and writes it as a cave file for
+ * GameServer to serve.
+ *
+ * Usage: CaveTool --seed SEED --rooms WIDTHxHEIGHT --output FILE [--threads N] [--no-repair] [--verify]
+ *
+ * With --verify the cave is generated a second time on one thread, and the
+ * tool fails unless both came out the same.
+ */
+public class CaveTool {
+
+    private String seed;
+    private int roomsX, roomsY;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File output;
+    private boolean repair = true;
+    private boolean verify = false;
+
+    private static void usage(final String problem) {
+        System.err.println(problem);
+        System.err.println("usage: CaveTool --seed SEED --rooms WIDTHxHEIGHT --output FILE [--threads N] [--no-repair] [--verify]");
+        System.exit(2);
+    }
+
+    private void parse(final String[] args) {
+        for (int k=0; k<args.length; k++) {
+            final String arg = args[k];
+            if (arg.equals("--no-repair")) {
+                repair = false;
+                continue;
+            }
+            if (arg.equals("--verify")) {
+                verify = true;
+                continue;
+            }
+            if (k + 1 == args.length) {
+                usage("missing value for " + arg);
+            }
+            final String value = args[++k];
+            try {
+                if (arg.equals("--seed")) {
+                    seed = value;
+                } else if (arg.equals("--rooms")) {
+                    final int x = value.indexOf('x');
+                    roomsX = Integer.parseInt(value.substring(0, x));
+                    roomsY = Integer.parseInt(value.substring(x + 1));
+                } else if (arg.equals("--threads")) {
+                    threads = Integer.parseInt(value);
+                } else if (arg.equals("--output")) {
+                    output = new File(value);
+                } else {
+                    usage("unknown option " + arg);
+                }
+            } catch (RuntimeException e) {
+                usage("bad value for " + arg + ": " + value);
+            }
+        }
+
+        if (seed == null || output == null) {
+            usage("--seed and --output are required");
+        }
+        if (!CaveModel.isSeedValid(seed)) {
+            usage("--seed must not be longer than " + CaveModel.MAXIMUM_SEED_LENGTH + " bytes in UTF-8");
+        }
+        if (roomsX < 1 || roomsY < 1 || roomsX > 0xffff || roomsY > 0xffff) {
+            usage("--rooms must be between 1x1 and 65535x65535");
+        }
+        if ((long)roomsX * roomsY > Integer.MAX_VALUE) {
+            usage("--rooms must not be more than " + Integer.MAX_VALUE + " rooms in all");
+        }
+        if (!CaveModel.fitsInFile(seed, roomsX, roomsY)) {
+            usage("--rooms " + roomsX + "x" + roomsY + " is too large for a cave file");
+        }
+    }
+
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private int run() throws IOException {
+        final long rooms = (long)roomsX * roomsY;
+
+        long start = System.nanoTime();
+        final CaveModel cave = new CaveModel(seed, roomsX, roomsY, threads, repair);
+        final double generateSeconds = (System.nanoTime() - start) / 1e9;
+
+        long floor = 0, wall = 0, door = 0;
+        for (int cy=0; cy<roomsY; cy++) {
+            for (int cx=0; cx<roomsX; cx++) {
+                final RoomModel room = cave.getRoom(cx, cy);
+                floor += room.getFloorCount();
+                wall += room.getWallCount();
+                door += room.getDoorCount();
+            }
+        }
+
+        start = System.nanoTime();
+        final CaveConnectivity connectivity = cave.analyseConnectivity();
+        final double validateSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        cave.writeFile(output);
+        final double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("cave \"" + seed + "\", " + roomsX + "x" + roomsY + " rooms, generator version " + cave.getGeneratorVersion());
+        System.out.printf("generated in %.3f s with %d threads, %.0f rooms/s%n",
+                generateSeconds, threads, rooms / generateSeconds);
+        System.out.printf("validated in %.3f s, written in %.3f s, %d bytes to %s%n",
+                validateSeconds, writeSeconds, output.length(), output);
+        if (cave.getConnectivity() != null) {
+            System.out.println("connected " + cave.getConnectivity().getInitialComponentCount() + " components by opening "
+                    + cave.getConnectivity().getAddedDoors() + " doors");
+        }
+        System.out.println("tiles: " + floor + " floor, " + wall + " wall, " + door + " door");
+        System.out.println("content hash " + Long.toHexString(cave.getContentHash()));
+
+        if (verify) {
+            start = System.nanoTime();
+            final CaveModel serial = new CaveModel(seed, roomsX, roomsY, 1, repair);
+            final double serialSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("generated again in %.3f s with 1 thread, %.2fx speedup with %d threads%n",
+                    serialSeconds, serialSeconds / generateSeconds, threads);
+            if (serial.getContentHash() != cave.getContentHash()) {
+                System.err.println("generated on 1 thread the cave has content hash " + Long.toHexString(serial.getContentHash()));
+                return 1;
+            }
+            System.out.println("identical when generated on 1 thread");
+        }
+        System.out.println("peak heap " + (peakHeapUsage() >> 20) + " MB");
+
+        if (connectivity.getComponentCount() > 1) {
+            System.err.println(connectivity.getComponentCount() + " components, the largest has "
+                    + connectivity.getLargestComponentSize() + " of " + rooms + " rooms");
+            return 1;
+        }
+        return 0;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final CaveTool tool = new CaveTool();
+        tool.parse(args);
+        System.exit(tool.run());
+    }
+}